@@ -1,34 +1,230 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import static gitlet.Utils.*;
 import static gitlet.Repository.BLOBS_DIR;
 
+/** The contents of one version of a file, stored in BLOBS_DIR, or in a pack,
+ *  under the hash of those contents in the repository's object format (see
+ *  Hash). File contents are hashed and copied as a stream through a fixed
+ *  buffer, so a blob never holds a whole large file in memory. A stored blob
+ *  is a header naming its codec followed by the contents compressed with that
+ *  codec (see Codec). */
+public class Blob {
 
-public class Blob implements Serializable {
+    /** Size of the buffer used to stream file contents. */
+    private static final int BUFFER_SIZE = 64 * 1024;
 
-    private final String contents;
+    /** The file holding the contents, or null if they are in CONTENTS. */
+    private final File source;
+    /** The contents, when they were built in memory rather than read from a file. */
+    private final byte[] contents;
     private final String blobId;
 
-    public Blob(String contents) {
-        this.contents = contents;
-        this.blobId = calcId();
+    /** A blob holding the current contents of FILE. The file is read once, to
+     *  hash it; its bytes are only copied again by save. */
+    public Blob(File file) {
+        this.source = file;
+        this.contents = null;
+        this.blobId = Hash.of(file);
     }
 
+    /** A blob holding the current contents of FILE, which are already known
+     *  to hash to BLOBID. */
+    Blob(File file, String blobId) {
+        this.source = file;
+        this.contents = null;
+        this.blobId = blobId;
+    }
 
-    private String calcId() {
-        return sha1(contents);
+    /** A blob holding CONTENTS. */
+    public Blob(byte[] contents) {
+        this.source = null;
+        this.contents = contents;
+        this.blobId = Hash.of((Object) contents);
     }
 
     public String getId() {
         return blobId;
     }
 
+    /** Store this blob in BLOBS_DIR unless a blob with the same ID is already
+     *  there. The contents go to a temporary file that is then renamed, so a
+     *  blob file is never seen half written. */
     public void save() {
-        writeContents(join(BLOBS_DIR, blobId), contents);
+        if (!exists(blobId)) {
+            saveLoose();
+        }
+    }
+
+    /** Store this blob as a loose file in BLOBS_DIR, even if it is packed. */
+    void saveLoose() {
+        File dest = join(BLOBS_DIR, blobId);
+        try {
+            File temp = File.createTempFile("blob", ".tmp", BLOBS_DIR);
+            try (OutputStream file = new BufferedOutputStream(
+                    Files.newOutputStream(temp.toPath()), BUFFER_SIZE)) {
+                if (source != null) {
+                    Codec codec = Codec.forWriting();
+                    codec.writeHeader(file);
+                    OutputStream out = codec.compress(file);
+                    Files.copy(source.toPath(), out);
+                    out.close();
+                } else {
+                    file.write(compress(contents));
+                }
+            }
+            Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return CONTENTS in the stored form of a blob: a codec header followed
+     *  by the contents compressed with that codec. */
+    static byte[] compress(byte[] contents) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try {
+            Codec codec = Codec.forWriting();
+            codec.writeHeader(result);
+            OutputStream out = codec.compress(result);
+            out.write(contents);
+            out.close();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result.toByteArray();
+    }
+
+    /** Return true if a blob with ID is stored, loose or in a pack. */
+    public static boolean exists(String id) {
+        return join(BLOBS_DIR, id).isFile() || Pack.contains(id);
+    }
+
+    /** Return a stream of the decompressed contents of the blob with ID, read
+     *  from its loose file or, failing that, from a pack. */
+    public static InputStream open(String id) throws IOException {
+        File loose = join(BLOBS_DIR, id);
+        if (!loose.isFile()) {
+            Pack.Entry packed = Pack.find(id);
+            if (packed == null) {
+                throw error("Missing blob %s.", id);
+            } else if (packed.type == Pack.DELTA) {
+                return new ByteArrayInputStream(Pack.resolve(id, packed));
+            }
+            return Codec.open(id, packed.stream(), () -> Hash.of(packed.bytes));
+        }
+        return Codec.open(id, new BufferedInputStream(
+                Files.newInputStream(loose.toPath()), BUFFER_SIZE), () -> Hash.of(loose));
+    }
+
+    /** Return the contents of the blob with ID, checking that they hash to
+     *  ID. Meant for blobs that are processed in memory anyway; use writeTo to
+     *  restore a file. */
+    public static byte[] readContents(String id) {
+        byte[] contents;
+        try (InputStream in = open(id)) {
+            contents = in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (!Hash.of((Object) contents).equals(id)) {
+            throw error("Corrupt blob %s.", id);
+        }
+        return contents;
+    }
+
+    /** Write the contents of the blob with ID to DEST, replacing DEST if it
+     *  exists, through a FileChannel. Blobs stored uncompressed are copied
+     *  with transferTo from their loose file, or written straight from the
+     *  mapped pack; others are decompressed as a stream, from the header on
+     *  that was read to choose between the two. Missing parent directories of
+     *  DEST are created. */
+    public static void writeTo(String id, File dest) {
+        if (!exists(id)) {
+            throw error("Missing blob %s.", id);
+        }
+        Worktree.changed();
+        File parent = dest.getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        try (FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            File loose = join(BLOBS_DIR, id);
+            if (loose.isFile()) {
+                try (FileChannel in = FileChannel.open(loose.toPath(), StandardOpenOption.READ)) {
+                    ByteBuffer head = ByteBuffer.allocate(Codec.HEADER_SIZE);
+                    while (head.hasRemaining() && in.read(head) >= 0) {
+                        continue;
+                    }
+                    Codec codec = Codec.fromHeader(id,
+                            Arrays.copyOf(head.array(), head.position()), () -> Hash.of(loose));
+                    if (codec == null || codec == Codec.NONE) {
+                        long start = codec == null ? 0 : Codec.HEADER_SIZE;
+                        for (long pos = start; pos < in.size(); ) {
+                            pos += in.transferTo(pos, in.size() - pos, out);
+                        }
+                    } else {
+                        copy(codec.decompress(new BufferedInputStream(
+                                Channels.newInputStream(in), BUFFER_SIZE)), out);
+                    }
+                    return;
+                }
+            } else {
+                Pack.Entry packed = Pack.find(id);
+                if (packed != null && packed.type == Pack.BLOB) {
+                    ByteBuffer bytes = packed.bytes.duplicate();
+                    byte[] head = new byte[Math.min(Codec.HEADER_SIZE, bytes.remaining())];
+                    bytes.get(head);
+                    Codec codec = Codec.fromHeader(id, head, () -> Hash.of(packed.bytes));
+                    if (codec == null || codec == Codec.NONE) {
+                        if (codec == null) {
+                            bytes.rewind();
+                        }
+                        while (bytes.hasRemaining()) {
+                            out.write(bytes);
+                        }
+                    } else {
+                        InputStream in = packed.stream();
+                        in.skipNBytes(Codec.HEADER_SIZE);
+                        copy(codec.decompress(in), out);
+                    }
+                    return;
+                }
+            }
+            try (InputStream in = open(id)) {
+                copy(in, out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
-    public static String getContents(String id) {
-        return readContentsAsString(join(BLOBS_DIR, id));
+    /** Write what remains of IN to OUT through a fixed buffer. */
+    private static void copy(InputStream in, FileChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        for (int n = in.read(buffer.array()); n >= 0; n = in.read(buffer.array())) {
+            buffer.limit(n);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
     }
 }
@@ -0,0 +1,71 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.CWD;
+
+/** Writes the files of a checkout. Each file is read, decompressed and
+ *  written by its own task on a pool of at most THREADS workers, so the
+ *  latency of one file's I/O overlaps with the others'.
+ *
+ *  Every task runs to completion even if another fails; the error reported
+ *  is that of the first failing file in path order, so the outcome does not
+ *  depend on how the tasks were scheduled.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Checkout {
+
+    /** Number of worker threads, set with -Dgitlet.checkoutThreads=N. */
+    private static final int THREADS = Integer.getInteger("gitlet.checkoutThreads",
+            Math.min(Runtime.getRuntime().availableProcessors() * 2, 16));
+
+    /** Write each file in FILES, a map from path to blob ID, into the working
+     *  directory, replacing the files that are there. */
+    static void write(Map<String, String> files) {
+        TreeMap<String, String> sorted = new TreeMap<String, String>(files);
+        if (sorted.size() <= 1 || THREADS <= 1) {
+            for (Map.Entry<String, String> e : sorted.entrySet()) {
+                Blob.writeTo(e.getValue(), join(CWD, e.getKey()));
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS, sorted.size()));
+        List<Future<?>> tasks = new ArrayList<Future<?>>(sorted.size());
+        try {
+            for (Map.Entry<String, String> e : sorted.entrySet()) {
+                tasks.add(pool.submit(() -> Blob.writeTo(e.getValue(), join(CWD, e.getKey()))));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        RuntimeException failure = null;
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException excp) {
+                if (failure == null) {
+                    failure = excp.getCause() instanceof RuntimeException
+                        ? (RuntimeException) excp.getCause()
+                        : new IllegalArgumentException(excp.getCause());
+                }
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                throw error("Checkout interrupted.");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package gitlet;
+
+/** Thin client for Daemon: runs a command in the daemon serving the
+ *  repository in the current directory, or in this process, like Main, if
+ *  no daemon is running.
+ *  @author ChaoYuan Lin
+ */
+public class Client {
+
+    /** Usage: java gitlet.Client ARGS, with the same ARGS as gitlet.Main. */
+    public static void main(String[] args) {
+        if (!Daemon.forward(args, System.out)) {
+            Main.main(args);
+        }
+    }
+}
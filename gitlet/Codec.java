@@ -0,0 +1,128 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** The compression codecs a stored blob may use. A blob file starts with a
+ *  four-byte header, the magic "GLB" followed by the ID of its codec; files
+ *  without the header are blobs written by earlier versions, stored raw.
+ *
+ *  A repository made by this version records in CONFIG that all its blobs
+ *  have a header, and there the header is trusted. In an older repository a
+ *  raw blob may itself start with bytes that look like a header. Such a blob
+ *  is told apart by its ID: the stored bytes of a raw blob hash to its ID,
+ *  while those of a blob with a header, which are compressed or at least
+ *  prefixed, do not. So there a header is only trusted once the stored bytes
+ *  are found not to hash to the ID.
+ *
+ *  @author ChaoYuan Lin
+ */
+enum Codec {
+
+    /** Contents stored as they are. */
+    NONE(0) {
+        @Override
+        OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        InputStream decompress(InputStream in) {
+            return in;
+        }
+    },
+
+    /** Contents stored as a zlib stream. */
+    DEFLATE(1) {
+        @Override
+        OutputStream compress(OutputStream out) {
+            return new DeflaterOutputStream(out);
+        }
+
+        @Override
+        InputStream decompress(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+    };
+
+    /** First three bytes of a blob file with a header. */
+    private static final byte[] MAGIC = {'G', 'L', 'B'};
+    /** Length of the header. */
+    static final int HEADER_SIZE = MAGIC.length + 1;
+    /** Key in CONFIG recording that every blob of the repository has a header. */
+    private static final String HEADERS_KEY = "blobHeaders";
+
+    /** The codec ID recorded in the header. */
+    private final int id;
+
+    Codec(int id) {
+        this.id = id;
+    }
+
+    /** Return a stream that compresses what is written to it into OUT. */
+    abstract OutputStream compress(OutputStream out);
+
+    /** Return a stream of the decompressed contents of IN. */
+    abstract InputStream decompress(InputStream in);
+
+    /** Return the codec new blobs are written with: DEFLATE, unless
+     *  -Dgitlet.compression names another codec. */
+    static Codec forWriting() {
+        String name = System.getProperty("gitlet.compression", DEFLATE.name());
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException excp) {
+            throw Utils.error("Unknown compression codec %s.", name);
+        }
+    }
+
+    /** Write the header for this codec to OUT. */
+    void writeHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(id);
+    }
+
+    /** Record in CONFIG that every blob of the repository being made has a
+     *  header. */
+    static void recordHeaders() {
+        Config.set(HEADERS_KEY, "true");
+    }
+
+    /** Return the codec named by the header at the start of HEAD, the first
+     *  bytes of the stored blob ID, or null if the blob is stored raw: if HEAD
+     *  does not start with the magic or, in a repository that may hold raw
+     *  blobs, if STORED, the hash of the whole stored blob, is ID. */
+    static Codec fromHeader(String id, byte[] head, Supplier<String> stored) {
+        if (head.length < HEADER_SIZE
+                || !Arrays.equals(head, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                || !Boolean.parseBoolean(Config.get(HEADERS_KEY, "false"))
+                    && stored.get().equals(id)) {
+            return null;
+        }
+        for (Codec c : values()) {
+            if (c.id == head[MAGIC.length]) {
+                return c;
+            }
+        }
+        throw Utils.error("Unknown compression codec %d.", head[MAGIC.length]);
+    }
+
+    /** Return a stream of the decompressed contents of IN, the stored blob ID
+     *  whose whole hash is STORED, as in fromHeader. IN must support mark. */
+    static InputStream open(String id, InputStream in, Supplier<String> stored)
+            throws IOException {
+        in.mark(HEADER_SIZE);
+        byte[] head = in.readNBytes(HEADER_SIZE);
+        Codec codec = fromHeader(id, head, stored);
+        if (codec == null) {
+            in.reset();
+            return in;
+        }
+        return codec.decompress(in);
+    }
+}
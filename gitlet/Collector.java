@@ -0,0 +1,148 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.BLOBS_DIR;
+import static gitlet.Repository.COMMIT_DIR;
+import static gitlet.Repository.TREE_DIR;
+
+/** The objects reachable from a set of commits and blobs, found by a parallel
+ *  mark, and the sweep of the loose objects that are not.
+ *
+ *  Commits are marked a generation at a time: the parents of every commit
+ *  marked in one round are read at once, on the common ForkJoin pool, in the
+ *  next. As each commit is marked, a task is forked to mark its root tree;
+ *  a tree task reads its tree, marks the blobs in it and forks a task for each
+ *  subtree not marked yet. Marks are kept in concurrent sets, so a tree shared
+ *  by many commits is read once, by whichever task reaches it first. The
+ *  mark waits for every tree task once all commits are marked.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Collector {
+
+    /** The IDs of the reachable commits and trees. */
+    final Set<String> commits = ConcurrentHashMap.newKeySet();
+    final Set<String> trees = ConcurrentHashMap.newKeySet();
+    /** Each reachable blob, mapped to the least path it was found under. */
+    final Map<String, String> blobs = new ConcurrentHashMap<String, String>();
+
+    /** Marks one tree, and through tasks of its own, everything below it. */
+    private class MarkTree extends RecursiveAction {
+        /** Tasks are serializable, though these are never serialized. */
+        private static final long serialVersionUID = 1L;
+        /** The tree to mark. */
+        private final String id;
+        /** The path of its directory followed by '/', or "" for a root. */
+        private final String prefix;
+
+        MarkTree(String id, String prefix) {
+            this.id = id;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected void compute() {
+            Tree t = Tree.read(id);
+            for (Map.Entry<String, String> e : t.blobIds().entrySet()) {
+                blobs.merge(e.getValue(), prefix + e.getKey(),
+                    (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+            List<MarkTree> subs = new ArrayList<MarkTree>();
+            for (Map.Entry<String, String> e : t.treeIds().entrySet()) {
+                if (trees.add(e.getValue())) {
+                    subs.add(new MarkTree(e.getValue(), prefix + e.getKey() + "/"));
+                }
+            }
+            invokeAll(subs);
+        }
+    }
+
+    /** Return the objects reachable from the commits HEADS and from the blobs
+     *  in ROOTS, a map from blob ID to the path it is staged under. */
+    static Collector mark(Collection<String> heads, Map<String, String> roots) {
+        Collector c = new Collector();
+        c.blobs.putAll(roots);
+        CommitIndex.size();
+        List<MarkTree> tasks = new ArrayList<MarkTree>();
+        List<String> generation = new ArrayList<String>(new TreeSet<String>(heads));
+        c.commits.addAll(generation);
+        while (!generation.isEmpty()) {
+            List<Commit> read = generation.parallelStream()
+                .map(Collector::read).collect(Collectors.toList());
+            List<String> next = new ArrayList<String>();
+            for (Commit commit : read) {
+                String tree = commit.getTree();
+                if (c.trees.add(tree)) {
+                    MarkTree task = c.new MarkTree(tree, "");
+                    task.fork();
+                    tasks.add(task);
+                }
+                for (String parent : new String[] {commit.getParentID1(),
+                    commit.getParentID2()}) {
+                    if (parent != null && c.commits.add(parent)) {
+                        next.add(parent);
+                    }
+                }
+            }
+            generation = next;
+        }
+        for (MarkTree task : tasks) {
+            task.join();
+        }
+        return c;
+    }
+
+    /** Return the commit ID, which must exist. */
+    private static Commit read(String id) {
+        Commit c = Commit.findCommit(id);
+        if (c == null) {
+            throw error("Missing commit %s.", id);
+        }
+        return c;
+    }
+
+    /** Delete every loose commit, tree and blob that this mark did not reach
+     *  and that was last modified no later than CUTOFF, in epoch milliseconds.
+     *  Return the number of objects deleted and the bytes they took, in that
+     *  order. */
+    long[] sweep(long cutoff) {
+        long[] result = new long[2];
+        sweep(COMMIT_DIR, commits, cutoff, result);
+        sweep(TREE_DIR, trees, cutoff, result);
+        sweep(BLOBS_DIR, blobs.keySet(), cutoff, result);
+        return result;
+    }
+
+    /** Delete the objects in DIR not in MARKED and last modified no later than
+     *  CUTOFF, adding their number and size to TOTALS. Files not named by an
+     *  object ID are left alone. */
+    private static void sweep(File dir, Set<String> marked, long cutoff, long[] totals) {
+        List<String> names = plainFilenamesIn(dir);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.length() != Hash.length() || !name.matches("[0-9a-f]+")
+                    || marked.contains(name)) {
+                continue;
+            }
+            File f = join(dir, name);
+            long size = f.length();
+            if (f.lastModified() <= cutoff && f.delete()) {
+                totals[0] += 1;
+                totals[1] += size;
+            }
+        }
+    }
+}
@@ -1,13 +1,21 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.io.Serializable;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Locale;
 import static gitlet.Utils.*;
 import static gitlet.Repository.COMMIT_DIR;
@@ -16,21 +24,78 @@ import static gitlet.Repository.COMMIT_DIR;
 /** Represents a gitlet commit object.
  *  does at a high level.
  *
+ *  Commits are stored in COMMIT_DIR in a compact binary form (see encode):
+ *      magic "GLC", format version, ID width in bytes,
+ *      parent count and raw parent IDs, timestamp in epoch milliseconds,
+ *      message, and the raw ID of the root tree (see Tree),
+ *  where strings are a length followed by UTF-8 bytes.
+ *
+ *  The ID of a commit is the hash of that encoding, so it covers the parents,
+ *  the tree and through it every file, the message and the time: equal
+ *  commits share one ID, and a commit whose stored bytes do not hash to its
+ *  ID is reported as corrupt when read. Commits of earlier versions were
+ *  named by a hash of their time, message and branch instead; they are still
+ *  read, without that check: version 2 commits, version 1 commits, which held
+ *  the whole filename -> blob ID table instead of a tree, and commits written
+ *  with Java serialization.
+ *
  *  @author ChaoYuan Lin
  */
 public class Commit implements Serializable {
 
+    /** The serialVersionUID the original class was given implicitly, pinned so
+     *  that commits written by earlier versions can still be read. */
+    private static final long serialVersionUID = 1725721762779692533L;
+
+    /** Maximum number of commits kept in CACHE, set with -Dgitlet.commitCache=N. */
+    private static final int CACHE_SIZE = Integer.getInteger("gitlet.commitCache", 1024);
+
+    /** Commits already read by this process, by full ID, least recently used first. */
+    private static final Map<String, Commit> CACHE =
+        new LinkedHashMap<String, Commit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    /** Number of lookups answered from CACHE and from disk. */
+    private static long cacheHits, cacheMisses;
+
+    /** Format of commit timestamps, as SimpleDateFormat "EEE MMM d HH:mm:ss yyyy Z"
+     *  in the default time zone; immutable, so one instance serves every commit. */
+    private static final DateTimeFormatter TIMESTAMP =
+        DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.US)
+            .withZone(ZoneId.systemDefault());
+
+    /** First bytes of a commit in the binary format. */
+    private static final byte[] MAGIC = {'G', 'L', 'C'};
+    /** Version of the binary format written by encode. */
+    private static final int VERSION = 3;
+    /** Version of the binary format written before IDs were hashes of it. */
+    private static final int TREE_VERSION = 2;
+    /** Version of the binary format holding the blob table instead of a tree. */
+    private static final int TABLE_VERSION = 1;
+    /** First byte of a commit written with Java serialization. */
+    private static final byte SERIALIZED = (byte) 0xac;
+
     private final String message;
     private final Date date;
     private final String parentID1;
     private final String parentID2;
-    private final String ID;
+    private String ID;
+    /** True if ID is the hash of this commit's encoding, false for a commit
+     *  named the way earlier versions named them. */
+    private transient boolean hashedId;
     private String otherBranch;
-    private File file;
 
     private String branch;
 
-    /**<String filename, blobID>*/
+    /** The ID of the root tree, or null for a commit read in a format that
+     *  held the blob table. */
+    private String tree;
+
+    /**<String filename, blobID>, filled in from the tree when first needed. */
     private HashMap<String, String> blobs;
 
     public Commit(String m, Date d, String b, String id1, String id2) {
@@ -39,60 +104,193 @@ public class Commit implements Serializable {
         parentID2 = id2;
         date = d;
         branch = b;
-        ID = createID();
         blobs = new HashMap<String, String>();
         otherBranch = null;
-        file = generateFile();
     }
 
+    /** A commit read back from disk under ID, holding tree T or, if T is null,
+     *  the blob table B. */
+    private Commit(String id, String m, Date d, String id1, String id2, String t,
+                   HashMap<String, String> b) {
+        ID = id;
+        message = m;
+        date = d;
+        parentID1 = id1;
+        parentID2 = id2;
+        tree = t;
+        blobs = b;
+    }
+
+    /** Store this commit, unless an equal commit, which has the same ID, is
+     *  already stored, loose or in a pack. */
     public void saveCommit() {
-        writeObject(file, this);
+        if (generateFile().isFile() || Pack.contains(ID)) {
+            cache(this);
+            return;
+        }
+        writeContents(generateFile(), (Object) encode());
+        CommitIndex.add(ID);
+        MessageIndex.add(ID, message);
+        cache(this);
     }
 
+    /** Return the IDs of all commits in the repository, in sorted order. */
     public static List<String> getCommitIds() {
-        return plainFilenamesIn(COMMIT_DIR);
+        return CommitIndex.ids();
     }
 
+    /** Return the commit whose ID is, or starts with, COMMITID, or null if
+     *  there is no such commit. A prefix matching several commits is an error. */
     public static Commit findCommit(String commitID) {
-        List<String> commitIDs = getCommitIds();
-        for (String id : commitIDs) {
-            if (id.substring(0, 8).equals(commitID.substring(0, 8))) {
-                File f = join(COMMIT_DIR, id);
-                if (!f.exists()) {
-                    return null;
-                } else {
-                    return readObject(f, Commit.class);
-                }
+        String id = CommitIndex.resolve(commitID);
+        if (id == null) {
+            return null;
+        }
+        synchronized (CACHE) {
+            Commit c = CACHE.get(id);
+            if (c != null) {
+                cacheHits += 1;
+                return c;
             }
+            cacheMisses += 1;
+        }
+        return cache(readCommit(id));
+    }
+
+    /** Read the commit stored under ID, loose in COMMIT_DIR in either format or
+     *  in a pack. */
+    private static Commit readCommit(String id) {
+        File f = join(COMMIT_DIR, id);
+        if (!f.isFile()) {
+            Pack.Entry packed = Pack.find(id);
+            if (packed == null) {
+                throw error("Missing commit %s.", id);
+            }
+            return decode(id, packed.toArray());
+        }
+        byte[] data = readContents(f);
+        if (data.length > 0 && data[0] == SERIALIZED) {
+            return readObject(f, Commit.class);
+        }
+        return decode(id, data);
+    }
+
+    /** Return this commit in the binary commit format. A commit named the way
+     *  earlier versions named them is written as version TREE_VERSION, whose
+     *  IDs are not checked. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(hashedId ? VERSION : TREE_VERSION);
+            out.writeByte(Hash.width());
+            int parents = parentID1 == null ? 0 : parentID2 == null ? 1 : 2;
+            out.writeByte(parents);
+            if (parents > 0) {
+                out.write(fromHex(parentID1));
+            }
+            if (parents > 1) {
+                out.write(fromHex(parentID2));
+            }
+            out.writeLong(date.getTime());
+            writeString(out, message);
+            out.write(fromHex(getTree()));
+        } catch (IOException excp) {
+            throw error("Internal error serializing commit.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Return the commit with ID ID whose binary encoding is DATA. */
+    static Commit decode(String id, byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            int version = in.readUnsignedByte();
+            if (!Arrays.equals(magic, MAGIC)
+                    || version != VERSION && version != TREE_VERSION && version != TABLE_VERSION) {
+                throw error("Unknown format for commit %s.", id);
+            }
+            if (version == VERSION && !Hash.of((Object) data).equals(id)) {
+                throw error("Corrupt commit %s.", id);
+            }
+            byte[] raw = new byte[in.readUnsignedByte()];
+            int parents = in.readUnsignedByte();
+            String id1 = null;
+            String id2 = null;
+            if (parents > 0) {
+                in.readFully(raw);
+                id1 = toHex(raw);
+            }
+            if (parents > 1) {
+                in.readFully(raw);
+                id2 = toHex(raw);
+            }
+            Date d = new Date(in.readLong());
+            String m = readString(in);
+            if (version != TABLE_VERSION) {
+                in.readFully(raw);
+                Commit c = new Commit(id, m, d, id1, id2, toHex(raw), null);
+                c.hashedId = version == VERSION;
+                return c;
+            }
+            int count = in.readInt();
+            HashMap<String, String> b = new HashMap<String, String>(count * 2);
+            for (int i = 0; i < count; i += 1) {
+                String name = readString(in);
+                in.readFully(raw);
+                b.put(name, toHex(raw));
+            }
+            return new Commit(id, m, d, id1, id2, null, b);
+        } catch (IOException excp) {
+            throw error("Corrupt commit %s.", id);
+        }
+    }
+
+    /** Add C to the commit cache and return it. */
+    private static Commit cache(Commit c) {
+        synchronized (CACHE) {
+            CACHE.put(c.getID(), c);
+        }
+        return c;
+    }
+
+    /** Return a one-line summary of the commit cache counters. */
+    public static String cacheStats() {
+        synchronized (CACHE) {
+            return String.format("commit cache: %d hits, %d misses, %d/%d entries",
+                    cacheHits, cacheMisses, CACHE.size(), CACHE_SIZE);
         }
-        return null;
     }
 
     private String generateTimeStamp() {
-        DateFormat dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
-        return dateFormat.format(date);
+        return TIMESTAMP.format(date.toInstant());
     }
 
     private File generateFile() {
         return join(COMMIT_DIR, this.getID());
     }
 
-    private String createID() {
-        return sha1(generateTimeStamp(), message, branch);
-    }
-
     public String getMessage() {
         return message;
     }
 
-    public void add(String name, String bId) {
-        blobs.put(name, bId);
-    }
-
     public HashMap<String, String> getBlobs() {
+        if (blobs == null) {
+            blobs = Tree.flatten(tree);
+        }
         return blobs;
     }
 
+    /** Return the ID of the root tree, writing the tree first for a commit
+     *  that was read with a blob table. */
+    public String getTree() {
+        if (tree == null) {
+            tree = Tree.write(blobs);
+        }
+        return tree;
+    }
+
     public Set<String> getFiles() {
         return getBlobs().keySet();
     }
@@ -101,6 +299,11 @@ public class Commit implements Serializable {
         return generateTimeStamp();
     }
 
+    /** Return the time of this commit in epoch milliseconds. */
+    public long getTime() {
+        return date.getTime();
+    }
+
     public String getID() {
         return ID;
     }
@@ -125,7 +328,11 @@ public class Commit implements Serializable {
         otherBranch = b;
     }
     
-    public void setBlobs(HashMap<String, String> newBlobs) {
-        blobs = newBlobs;
+    /** Make T the root tree of this new commit, which gives it its ID. */
+    public void setTree(String t) {
+        tree = t;
+        blobs = null;
+        hashedId = true;
+        ID = Hash.of((Object) encode());
     }
 }
@@ -0,0 +1,314 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.COMMIT_GRAPH;
+
+/** The shape of the commit history, kept apart from the commits themselves
+ *  so that ancestry questions do not read any commit.
+ *
+ *  The commit-graph file holds the magic "GCGR", a version, the ID width, the
+ *  commit count, a 256-entry fan-out table and the sorted raw IDs, followed
+ *  for each commit by the positions of its two parents (-1 for none) and its
+ *  generation: 1 for a root commit, otherwise one more than the largest
+ *  generation of its parents. A commit's ancestors all have smaller
+ *  generations, which is what lets mergeBase stop early. The file is
+ *  memory-mapped.
+ *
+ *  Commits made after the file was written are not in it; they are read
+ *  like any other commit, their generations computed from their parents, and
+ *  the file is extended with them the next time mergeBase needs them.
+ *
+ *  @author ChaoYuan Lin
+ */
+class CommitGraph {
+
+    /** Magic number at the start of the graph file. */
+    private static final int MAGIC = 0x47434752;
+    /** Version of the on-disk layout. */
+    private static final int VERSION = 1;
+    /** Size of the fixed header, fan-out table included. */
+    private static final int HEADER_SIZE = 16 + 256 * 4;
+    /** Parent position of a commit without that parent. */
+    private static final int NONE = -1;
+
+    /** Marks of a commit reached from the first and the second commit. */
+    private static final int FROM_A = 1, FROM_B = 2;
+
+    /** The graph loaded by this process, or null if not yet loaded. */
+    private static CommitGraph loaded;
+
+    /** The parents and generations of commits that are not in the file, found
+     *  by this process. */
+    private static final Map<String, Node> EXTRA = new HashMap<String, Node>();
+
+    /** The mapped graph file, or null if there is none. */
+    private final ByteBuffer table;
+    /** Width of one raw ID in bytes and number of commits. */
+    private final int width, size;
+
+    /** A commit with its parents and generation. */
+    private static class Node {
+        final String id;
+        final String parent1, parent2;
+        final int generation;
+
+        Node(String id, String parent1, String parent2, int generation) {
+            this.id = id;
+            this.parent1 = parent1;
+            this.parent2 = parent2;
+            this.generation = generation;
+        }
+    }
+
+    private CommitGraph(ByteBuffer table) {
+        this.table = table;
+        this.width = table == null ? Hash.width() : table.getInt(8);
+        this.size = table == null ? 0 : table.getInt(12);
+    }
+
+    /** Return the ID of a latest common ancestor of commits A and B, or null
+     *  if they have none. Commits are visited from both sides at once, highest
+     *  generation first, so the first commit reached from both is a common
+     *  ancestor that no other common ancestor descends from, and the walk
+     *  stops there without visiting older history. */
+    static String mergeBase(String a, String b) {
+        PriorityQueue<Node> queue = new PriorityQueue<Node>(
+            (x, y) -> Integer.compare(y.generation, x.generation));
+        Map<String, Integer> marks = new HashMap<String, Integer>();
+        mark(node(a), FROM_A, queue, marks);
+        mark(node(b), FROM_B, queue, marks);
+        String result = null;
+        while (!queue.isEmpty()) {
+            Node n = queue.poll();
+            int m = marks.get(n.id);
+            if (m == (FROM_A | FROM_B)) {
+                result = n.id;
+                break;
+            }
+            for (String p : new String[] {n.parent1, n.parent2}) {
+                if (p != null) {
+                    mark(node(p), m, queue, marks);
+                }
+            }
+        }
+        if (!EXTRA.isEmpty()) {
+            extend();
+        }
+        return result;
+    }
+
+    /** Rewrite the graph file to hold exactly the commits IDS, which must
+     *  include the parents of every commit in it. */
+    static void rebuild(Collection<String> ids) {
+        TreeMap<String, Node> all = new TreeMap<String, Node>();
+        for (String id : ids) {
+            all.put(id, node(id));
+        }
+        write(all);
+        EXTRA.clear();
+    }
+
+    /** Forget the graph and commits read by this process, so that the file is
+     *  read again when next needed. */
+    static void reload() {
+        loaded = null;
+        EXTRA.clear();
+    }
+
+    /** Add MARK to the marks of N, queueing N if that adds anything. */
+    private static void mark(Node n, int mark, PriorityQueue<Node> queue,
+                             Map<String, Integer> marks) {
+        int old = marks.getOrDefault(n.id, 0);
+        if ((old | mark) != old) {
+            boolean queued = old != 0;
+            marks.put(n.id, old | mark);
+            if (!queued) {
+                queue.add(n);
+            }
+        }
+    }
+
+    /** Return the node of commit ID, from the file if it is there. */
+    private static Node node(String id) {
+        CommitGraph g = load();
+        int i = g.position(id);
+        if (i >= 0) {
+            return g.nodeAt(i);
+        }
+        Node n = EXTRA.get(id);
+        return n != null ? n : readNodes(id);
+    }
+
+    /** Read commit ID and those of its ancestors that are neither in the file
+     *  nor in EXTRA, add them to EXTRA, and return the node of ID. */
+    private static Node readNodes(String id) {
+        Deque<Commit> todo = new ArrayDeque<Commit>();
+        todo.push(Commit.findCommit(id));
+        while (!todo.isEmpty()) {
+            Commit c = todo.peek();
+            int generation = 1;
+            boolean ready = true;
+            for (String p : new String[] {c.getParentID1(), c.getParentID2()}) {
+                if (p == null) {
+                    continue;
+                }
+                Node parent = known(p);
+                if (parent == null) {
+                    todo.push(Commit.findCommit(p));
+                    ready = false;
+                } else {
+                    generation = Math.max(generation, parent.generation + 1);
+                }
+            }
+            if (ready) {
+                todo.pop();
+                EXTRA.put(c.getID(), new Node(c.getID(), c.getParentID1(),
+                        c.getParentID2(), generation));
+            }
+        }
+        return EXTRA.get(id);
+    }
+
+    /** Return the node of commit ID if it is in the file or in EXTRA, or else
+     *  null. */
+    private static Node known(String id) {
+        CommitGraph g = load();
+        int i = g.position(id);
+        return i >= 0 ? g.nodeAt(i) : EXTRA.get(id);
+    }
+
+    /** Rewrite the graph file with the commits in EXTRA added. */
+    private static void extend() {
+        CommitGraph g = load();
+        TreeMap<String, Node> all = new TreeMap<String, Node>(EXTRA);
+        for (int i = 0; i < g.size; i += 1) {
+            all.put(g.idAt(i), g.nodeAt(i));
+        }
+        write(all);
+        EXTRA.clear();
+    }
+
+    /** Return the graph for this repository, empty if there is no file. */
+    private static CommitGraph load() {
+        if (loaded == null) {
+            loaded = new CommitGraph(COMMIT_GRAPH.isFile() ? map(COMMIT_GRAPH) : null);
+        }
+        return loaded;
+    }
+
+    /** Return the position of ID in this graph, or -1. */
+    private int position(String id) {
+        if (size == 0 || id.length() != width * 2) {
+            return -1;
+        }
+        int first = Integer.parseInt(id.substring(0, 2), 16);
+        int lo = first == 0 ? 0 : table.getInt(16 + (first - 1) * 4);
+        int hi = table.getInt(16 + first * 4);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = idAt(mid).compareTo(id);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Return the I-th ID of the graph as a hex string. */
+    private String idAt(int i) {
+        byte[] raw = new byte[width];
+        table.get(HEADER_SIZE + i * width, raw);
+        return toHex(raw);
+    }
+
+    /** Return the node of the I-th commit of the graph. */
+    private Node nodeAt(int i) {
+        int at = HEADER_SIZE + size * width + i * 12;
+        int p1 = table.getInt(at);
+        int p2 = table.getInt(at + 4);
+        return new Node(idAt(i), p1 == NONE ? null : idAt(p1), p2 == NONE ? null : idAt(p2),
+                table.getInt(at + 8));
+    }
+
+    /** Write the nodes in ALL, sorted by ID, as the new graph file, replacing
+     *  the old one atomically. */
+    private static void write(TreeMap<String, Node> all) {
+        List<String> ids = new ArrayList<String>(all.keySet());
+        Map<String, Integer> positions = new HashMap<String, Integer>(ids.size() * 2);
+        int[] fanout = new int[256];
+        for (String id : ids) {
+            positions.put(id, positions.size());
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        for (int b = 1; b < 256; b += 1) {
+            fanout[b] += fanout[b - 1];
+        }
+
+        File temp = join(COMMIT_GRAPH.getParentFile(), COMMIT_GRAPH.getName() + ".lock");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(Hash.width());
+            out.writeInt(ids.size());
+            for (int count : fanout) {
+                out.writeInt(count);
+            }
+            for (String id : ids) {
+                out.write(fromHex(id));
+            }
+            for (Node n : all.values()) {
+                out.writeInt(n.parent1 == null ? NONE : positions.get(n.parent1));
+                out.writeInt(n.parent2 == null ? NONE : positions.get(n.parent2));
+                out.writeInt(n.generation);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), COMMIT_GRAPH.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        loaded = null;
+    }
+
+    /** Map FILE read-only, checking its magic number and version. */
+    private static ByteBuffer map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC
+                    || buf.getInt(4) != VERSION) {
+                throw error("Unknown format for the commit graph.");
+            }
+            return buf;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
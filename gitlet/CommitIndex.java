@@ -0,0 +1,367 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.COMMIT_DIR;
+import static gitlet.Repository.COMMIT_INDEX;
+import static gitlet.Repository.COMMIT_JOURNAL;
+
+/** A persistent, sorted table of every commit ID in the repository, so that
+ *  commits can be looked up by an abbreviated ID without listing COMMIT_DIR.
+ *
+ *  The file is laid out like the fan-out table of a git pack index:
+ *      magic "GCIX", version, ID width in bytes, COMMIT_DIR modification time,
+ *      256 fan-out entries (entry B is the number of IDs whose first byte is
+ *      at most B), followed by the raw IDs in ascending order.
+ *  The table is memory-mapped, so a prefix lookup touches O(log n) records.
+ *  It lists loose and packed commits alike.
+ *
+ *  A new commit is not written into the table but appended to COMMIT_JOURNAL
+ *  as its raw ID and the modification time COMMIT_DIR has once the commit is
+ *  written, so a commit costs the same however long the history. Lookups
+ *  search the journal as well as the table. Once the journal holds
+ *  JOURNAL_LIMIT commits, and whenever the table is rebuilt, as pack and gc
+ *  do, the journal is folded into a new table.
+ *
+ *  A process keeps the index it has read for as long as it still describes
+ *  the repository: COMMIT_DIR has the modification time last recorded, the
+ *  table is the same file, and the journal is as long as when it was read.
+ *  The modification time alone is too coarse, as another process may add a
+ *  commit within the same tick; but every commit it adds lengthens the
+ *  journal, and every table it writes is a new file.
+ *
+ *  @author ChaoYuan Lin
+ */
+class CommitIndex {
+
+    /** Magic number at the start of the index file. */
+    private static final int MAGIC = 0x47434958;
+    /** Version of the on-disk layout. */
+    private static final int VERSION = 1;
+    /** Size of the fixed header, fan-out table included. */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 256 * 4;
+    /** Number of journal entries that causes the journal to be folded into the table. */
+    private static final int JOURNAL_LIMIT = 1024;
+
+    /** The index loaded by this process, or null if not yet loaded. */
+    private static CommitIndex loaded;
+
+    /** The mapped index file. */
+    private final ByteBuffer table;
+    /** Width of one raw ID in bytes. */
+    private final int width;
+    /** Number of IDs in the table. */
+    private final int count;
+    /** The IDs in the journal that are not in the table, in ascending order. */
+    private final TreeSet<String> journal = new TreeSet<String>();
+    /** The modification time of COMMIT_DIR recorded with the last journal
+     *  entry, or that in the table if the journal is empty. */
+    private long dirTime;
+    /** The attributes of the table file when it was mapped. */
+    private final BasicFileAttributes file;
+    /** Number of bytes of whole records read from COMMIT_JOURNAL. */
+    private long journalLength;
+
+    /** The index in the table file, mapped. */
+    private CommitIndex() {
+        this.file = attributes();
+        this.table = map(COMMIT_INDEX);
+        this.width = table.getInt(8);
+        this.count = table.getInt(HEADER_SIZE - 4);
+        this.dirTime = table.getLong(12);
+        readJournal();
+    }
+
+    /** Return the full ID of the unique commit whose ID starts with PREFIX,
+     *  or null if there is none. Throws a GitletException if more than one
+     *  commit matches. A full-length ID is resolved with a single stat. */
+    static String resolve(String prefix) {
+        String p = prefix.toLowerCase();
+        if (!isHex(p)) {
+            return null;
+        }
+        if (p.length() == Hash.length() && join(COMMIT_DIR, p).isFile()) {
+            return p;
+        }
+        return load().find(p);
+    }
+
+    /** Return every commit ID in the repository in ascending order. */
+    static List<String> ids() {
+        return load().all();
+    }
+
+    /** Forget the index read by this process, so that it is read again when
+     *  next needed. */
+    static void reload() {
+        loaded = null;
+    }
+
+    /** Return the number of commits in the repository. */
+    static int size() {
+        CommitIndex index = load();
+        return index.count + index.journal.size();
+    }
+
+    /** Record the newly saved commit ID in the index. The caller has just
+     *  written the commit into COMMIT_DIR, so the existing table is reused
+     *  even though the directory is now newer than it: ID is appended to the
+     *  journal with the directory's new modification time. */
+    static void add(String id) {
+        if (!COMMIT_INDEX.isFile()) {
+            rebuild();
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(COMMIT_JOURNAL.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND)))) {
+            out.write(fromHex(id));
+            out.writeLong(COMMIT_DIR.lastModified());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        loaded = null;
+        CommitIndex index = new CommitIndex();
+        if (index.journal.size() >= JOURNAL_LIMIT) {
+            write(index.all());
+        }
+    }
+
+    /** Rebuild the index from the commits stored in COMMIT_DIR and in packs. */
+    static void rebuild() {
+        TreeSet<String> all = new TreeSet<String>(Pack.ids(Pack.COMMIT));
+        for (String name : plainFilenamesIn(COMMIT_DIR)) {
+            if (name.length() == Hash.length() && isHex(name)) {
+                all.add(name);
+            }
+        }
+        write(new ArrayList<String>(all));
+    }
+
+    /** Return the index for this repository, rebuilding it first if it is
+     *  missing or COMMIT_DIR has changed behind its back. */
+    private static CommitIndex load() {
+        if (loaded != null && loaded.isCurrent()) {
+            return loaded;
+        }
+        loaded = null;
+        if (COMMIT_INDEX.isFile()) {
+            CommitIndex index = new CommitIndex();
+            if (index.isCurrent()) {
+                loaded = index;
+                return loaded;
+            }
+        }
+        rebuild();
+        loaded = new CommitIndex();
+        return loaded;
+    }
+
+    /** Return true if this index still describes COMMIT_DIR: neither the
+     *  directory, nor the table file, nor the journal has changed since they
+     *  were read. */
+    private boolean isCurrent() {
+        if (dirTime != COMMIT_DIR.lastModified() || COMMIT_JOURNAL.length() != journalLength) {
+            return false;
+        }
+        BasicFileAttributes now = attributes();
+        return now != null && file != null && Objects.equals(now.fileKey(), file.fileKey())
+                && now.size() == file.size()
+                && now.lastModifiedTime().equals(file.lastModifiedTime());
+    }
+
+    /** Return the attributes of the table file, or null if it is missing. */
+    private static BasicFileAttributes attributes() {
+        try {
+            return Files.readAttributes(COMMIT_INDEX.toPath(), BasicFileAttributes.class);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Return every ID of the table and the journal in ascending order. */
+    private List<String> all() {
+        List<String> result = new ArrayList<String>(count + journal.size());
+        for (int i = 0; i < count; i += 1) {
+            result.add(idAt(i));
+        }
+        for (String id : journal) {
+            int pos = Collections.binarySearch(result, id);
+            result.add(-pos - 1, id);
+        }
+        return result;
+    }
+
+    /** Read COMMIT_JOURNAL into JOURNAL, DIRTIME and JOURNALLENGTH, leaving
+     *  out the IDs already in the table. A record cut short by an interrupted
+     *  append is ignored. */
+    private void readJournal() {
+        if (!COMMIT_JOURNAL.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(COMMIT_JOURNAL.toPath())))) {
+            byte[] raw = new byte[width];
+            while (true) {
+                in.readFully(raw);
+                long time = in.readLong();
+                String id = toHex(raw);
+                if (position(id) < 0) {
+                    journal.add(id);
+                }
+                dirTime = time;
+                journalLength += width + 8;
+            }
+        } catch (EOFException excp) {
+            return;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the unique ID in this table or the journal starting with the
+     *  lowercase hex string PREFIX, or null if there is none. */
+    private String find(String prefix) {
+        if (prefix.isEmpty() || prefix.length() > width * 2) {
+            return null;
+        }
+        List<String> matches = new ArrayList<String>();
+        int lo = lowerBound(prefix);
+        for (int i = lo; i < count && i < lo + 2 && idAt(i).startsWith(prefix); i += 1) {
+            matches.add(idAt(i));
+        }
+        for (String id : journal.tailSet(prefix)) {
+            if (!id.startsWith(prefix) || matches.size() > 1) {
+                break;
+            }
+            matches.add(id);
+        }
+        if (matches.size() > 1) {
+            throw error("Commit id %s is ambiguous.", prefix);
+        }
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    /** Return the position of the ID of the table equal to ID, or -1. */
+    private int position(String id) {
+        int i = lowerBound(id);
+        return i < count && idAt(i).equals(id) ? i : -1;
+    }
+
+    /** Return the position of the first ID of the table that is not less
+     *  than the lowercase hex string PREFIX. */
+    private int lowerBound(String prefix) {
+        int high = Character.digit(prefix.charAt(0), 16) << 4;
+        int firstByte = prefix.length() > 1
+                ? high | Character.digit(prefix.charAt(1), 16) : high;
+        int lastByte = prefix.length() > 1 ? firstByte : high | 0xf;
+        int lo = firstByte == 0 ? 0 : fanout(firstByte - 1);
+        int hi = fanout(lastByte);
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (idAt(mid).compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Return the number of IDs whose first byte is at most B. */
+    private int fanout(int b) {
+        return table.getInt(20 + b * 4);
+    }
+
+    /** Return the I-th ID of the table as a hex string. */
+    private String idAt(int i) {
+        byte[] raw = new byte[width];
+        table.get(HEADER_SIZE + i * width, raw);
+        return toHex(raw);
+    }
+
+    /** Write the sorted hex IDs in ALL as the new index file, replacing the
+     *  old one atomically. */
+    private static void write(List<String> all) {
+        int width = Hash.width();
+        int[] fanout = new int[256];
+        for (String id : all) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        for (int b = 1; b < 256; b += 1) {
+            fanout[b] += fanout[b - 1];
+        }
+
+        File temp = join(COMMIT_INDEX.getParentFile(), COMMIT_INDEX.getName() + ".lock");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeLong(COMMIT_DIR.lastModified());
+            for (int count : fanout) {
+                out.writeInt(count);
+            }
+            for (String id : all) {
+                out.write(fromHex(id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), COMMIT_INDEX.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        COMMIT_JOURNAL.delete();
+        loaded = null;
+    }
+
+    /** Map FILE read-only into memory, checking its header. */
+    private static MappedByteBuffer map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC
+                    || buf.getInt(4) != VERSION) {
+                throw error("Corrupt commit index %s.", file.getPath());
+            }
+            return buf;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return true iff S consists only of lowercase hex digits. */
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i += 1) {
+            char c = s.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static gitlet.Repository.CONFIG;
+
+/** The settings of the repository, kept in CONFIG as a properties file that
+ *  is written when the repository is made. A repository made before there
+ *  were settings has no CONFIG, and every setting takes its default.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Config {
+
+    /** The settings read by this process, or null until CONFIG is read. */
+    private static volatile Properties settings;
+
+    /** Return the setting KEY, or DEFAULT if the repository does not have it. */
+    static String get(String key, String def) {
+        return settings().getProperty(key, def);
+    }
+
+    /** Make VALUE the setting KEY, rewriting CONFIG. */
+    static synchronized void set(String key, String value) {
+        Properties s = new Properties();
+        s.putAll(settings());
+        s.setProperty(key, value);
+        try (Writer out = Files.newBufferedWriter(CONFIG.toPath(), StandardCharsets.UTF_8)) {
+            s.store(out, null);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        settings = s;
+    }
+
+    /** Forget the settings read by this process, so that CONFIG is read again
+     *  when next needed. */
+    static void reload() {
+        settings = null;
+    }
+
+    /** Return the settings, reading CONFIG if this process has not yet. */
+    private static Properties settings() {
+        Properties s = settings;
+        if (s == null) {
+            s = new Properties();
+            if (CONFIG.isFile()) {
+                try (Reader in = Files.newBufferedReader(CONFIG.toPath(),
+                        StandardCharsets.UTF_8)) {
+                    s.load(in);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            }
+            settings = s;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,170 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.GITLET_DIR;
+
+/** A long-running server for one repository, so that a sequence of commands
+ *  starts the JVM, loads classes and warms caches once instead of once per
+ *  command.
+ *
+ *  "java gitlet.Main daemon" serves the repository in the current directory
+ *  on the Unix-domain socket SOCKET until "java gitlet.Main daemon stop".
+ *  Client forwards a command to it. A request is the number of arguments
+ *  followed by each argument as written by Utils.writeString; the reply is
+ *  what the command prints, and the daemon closes the connection when the
+ *  command is done.
+ *
+ *  Requests are served one at a time, each under the repository lock like
+ *  any other command, in a GitletSession that prints to the connection, so
+ *  sessions run by other threads of the daemon's JVM take turns with them. The
+ *  session forgets the index, the commit tables and the packs read for
+ *  earlier requests, since another process may have changed them; commits,
+ *  trees and blobs stay cached, as they never change once written.
+ *
+ *  A daemon holds a lock on DAEMON_LOCK for as long as it runs, so only one
+ *  serves a repository, and a socket file left by a daemon that was killed
+ *  is known to be stale.
+ *
+ *  "daemon --watch" also runs a Monitor for as long as it serves, so that
+ *  the commands it runs only look at the files that changed since the last
+ *  one (see Worktree).
+ *
+ *  @author ChaoYuan Lin
+ */
+class Daemon {
+
+    /** The socket a daemon listens on. */
+    static final File SOCKET = join(GITLET_DIR, "daemon.sock");
+    /** Held by the running daemon. */
+    private static final File DAEMON_LOCK = join(GITLET_DIR, "daemon.lock");
+    /** The request that stops the daemon. */
+    private static final String[] STOP = {"daemon", "stop"};
+
+    /** Serve the repository in the current directory until stopped, watching
+     *  the working directory with a Monitor if WATCH. */
+    static void serve(boolean watch) {
+        if (!GITLET_DIR.isDirectory()) {
+            throw error("Not in an initialized Gitlet directory.");
+        }
+        try (FileChannel channel = FileChannel.open(DAEMON_LOCK.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            if (lock == null) {
+                throw error("A daemon is already running.");
+            }
+            Files.deleteIfExists(SOCKET.toPath());
+            try (ServerSocketChannel server =
+                         ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                server.bind(UnixDomainSocketAddress.of(SOCKET.toPath()));
+                Runtime.getRuntime().addShutdownHook(new Thread(SOCKET::delete));
+                if (watch) {
+                    Monitor.start();
+                }
+                boolean running = true;
+                while (running) {
+                    try (SocketChannel client = server.accept()) {
+                        running = handle(client);
+                    } catch (IOException excp) {
+                        System.err.println("gitlet daemon: " + excp.getMessage());
+                    }
+                }
+            } finally {
+                Monitor.stop();
+                SOCKET.delete();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Stop the daemon serving the repository in the current directory,
+     *  printing its reply on OUT. */
+    static void stop(PrintStream out) {
+        if (!forward(STOP, out)) {
+            throw error("No daemon is running.");
+        }
+    }
+
+    /** Run the command ARGS in the daemon serving the repository in the current
+     *  directory and print its output on STDOUT. Return false, having done
+     *  nothing, if no daemon is running. */
+    static boolean forward(String[] args, PrintStream stdout) {
+        if (!SOCKET.exists()) {
+            return false;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET.toPath()));
+        } catch (IOException excp) {
+            return false;
+        }
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                writeString(out, arg);
+            }
+            out.flush();
+            Channels.newInputStream(channel).transferTo(stdout);
+            stdout.flush();
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Run the command requested on CLIENT, sending it what the command prints.
+     *  Return false if the request was to stop. */
+    private static boolean handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(client)));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = readString(in);
+        }
+
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)));
+        if (Arrays.equals(args, STOP)) {
+            out.println("Daemon stopped.");
+            out.flush();
+            return false;
+        }
+        if (args.length > 0 && args[0].equals("daemon")) {
+            out.println("A daemon is already running.");
+            out.flush();
+            return true;
+        }
+
+        try {
+            new GitletSession(out).execute(args);
+        } catch (GitletException excp) {
+            out.println(excp.getMessage());
+        } catch (RuntimeException excp) {
+            excp.printStackTrace();
+            out.println("Internal error: " + excp);
+        } finally {
+            out.flush();
+        }
+        return true;
+    }
+}
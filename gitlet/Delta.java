@@ -0,0 +1,174 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Binary deltas between two versions of a file, used to store a blob in a
+ *  pack as a set of changes against a similar blob.
+ *
+ *  A delta is the length of the base and of the result, each as a varint,
+ *  followed by instructions: COPY, an offset and a length into the base; or
+ *  INSERT, a length and that many literal bytes. Matches are found by indexing
+ *  the base in BLOCK-byte blocks and scanning the target with a rolling hash.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Delta {
+
+    /** Instruction copying a range of the base. */
+    private static final int COPY = 1;
+    /** Instruction inserting literal bytes. */
+    private static final int INSERT = 2;
+    /** Size of the blocks of the base that are indexed. */
+    private static final int BLOCK = 16;
+    /** Multiplier of the rolling hash. */
+    private static final int PRIME = 31;
+
+    /** Return a delta that turns BASE into TARGET, or null if it would not be
+     *  smaller than LIMIT bytes. */
+    static byte[] create(byte[] base, byte[] target, int limit) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        if (base.length < BLOCK || target.length < BLOCK) {
+            insert(out, target, 0, target.length);
+            return out.size() < limit ? out.toByteArray() : null;
+        }
+
+        Map<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+
+        int power = 1;
+        for (int i = 1; i < BLOCK; i += 1) {
+            power *= PRIME;
+        }
+        int pending = 0;
+        int pos = 0;
+        int h = hash(target, 0);
+        while (pos + BLOCK <= target.length) {
+            Integer at = blocks.get(h);
+            if (at != null && matches(base, at, target, pos, BLOCK)) {
+                int start = at;
+                int end = at + BLOCK;
+                int tEnd = pos + BLOCK;
+                while (start > 0 && pos > pending && base[start - 1] == target[pos - 1]) {
+                    start -= 1;
+                    pos -= 1;
+                }
+                while (end < base.length && tEnd < target.length && base[end] == target[tEnd]) {
+                    end += 1;
+                    tEnd += 1;
+                }
+                insert(out, target, pending, pos);
+                out.write(COPY);
+                writeVarint(out, start);
+                writeVarint(out, end - start);
+                if (out.size() >= limit) {
+                    return null;
+                }
+                pos = tEnd;
+                pending = tEnd;
+                if (pos + BLOCK <= target.length) {
+                    h = hash(target, pos);
+                }
+                continue;
+            }
+            if (pos + BLOCK < target.length) {
+                h = (h - target[pos] * power) * PRIME + target[pos + BLOCK];
+            }
+            pos += 1;
+        }
+        insert(out, target, pending, target.length);
+        return out.size() < limit ? out.toByteArray() : null;
+    }
+
+    /** Return the result of applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        if (readVarint(delta, pos) != base.length) {
+            throw Utils.error("Delta does not apply to its base.");
+        }
+        byte[] result = new byte[readVarint(delta, pos)];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int offset = readVarint(delta, pos);
+                int length = readVarint(delta, pos);
+                System.arraycopy(base, offset, result, written, length);
+                written += length;
+            } else if (op == INSERT) {
+                int length = readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], result, written, length);
+                pos[0] += length;
+                written += length;
+            } else {
+                throw Utils.error("Corrupt delta.");
+            }
+        }
+        if (written != result.length) {
+            throw Utils.error("Corrupt delta.");
+        }
+        return result;
+    }
+
+    /** Return the length of the result of the delta starting with HEAD, which
+     *  must hold at least its first two varints. */
+    static int resultLength(byte[] head) {
+        int[] pos = {0};
+        readVarint(head, pos);
+        return readVarint(head, pos);
+    }
+
+    /** Write an INSERT of TARGET[FROM..TO) to OUT, if the range is not empty. */
+    private static void insert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    /** Return the rolling hash of the BLOCK bytes of DATA at START. */
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i += 1) {
+            h = h * PRIME + data[i];
+        }
+        return h;
+    }
+
+    /** Return true if the LENGTH bytes of A at I equal those of B at J. */
+    private static boolean matches(byte[] a, int i, byte[] b, int j, int length) {
+        for (int k = 0; k < length; k += 1) {
+            if (a[i + k] != b[j + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Write the non-negative N to OUT seven bits at a time. */
+    private static void writeVarint(ByteArrayOutputStream out, int n) {
+        while (n >= 0x80) {
+            out.write((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.write(n);
+    }
+
+    /** Read a varint from DATA at POS[0], advancing POS[0] past it. */
+    private static int readVarint(byte[] data, int[] pos) {
+        int n = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = data[pos[0]++];
+            n |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+    }
+}
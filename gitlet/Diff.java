@@ -0,0 +1,273 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Line-based diff and three-way merge of file contents.
+ *
+ *  Lines are matched with Myers' O(ND) algorithm in its linear-space form:
+ *  each step finds the middle of an optimal edit path by searching from both
+ *  ends at once and recurses on the two halves, so memory stays proportional
+ *  to the length of the files rather than to the product of their lengths.
+ *
+ *  merge3 is diff3: both versions are matched against their common base,
+ *  lines kept by both are stable, and each region between stable lines is
+ *  taken from whichever side changed it. A region changed differently on both
+ *  sides is a conflict, and only that region is wrapped in conflict markers.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Diff {
+
+    /** Markers around the two versions of a conflicting region. */
+    static final String START = "<<<<<<< HEAD\n", MIDDLE = "=======\n", END = ">>>>>>>\n";
+
+    /** Number of leading bytes looked at to decide if contents are binary. */
+    private static final int BINARY_PREFIX = 8000;
+
+    /** The result of a three-way merge. */
+    static class Result {
+        /** The merged contents, with markers around any conflicts. */
+        final byte[] contents;
+        /** True if some region conflicted. */
+        final boolean conflict;
+
+        Result(byte[] contents, boolean conflict) {
+            this.contents = contents;
+            this.conflict = conflict;
+        }
+    }
+
+    /** Return true if CONTENTS look binary: a NUL byte within their first
+     *  BINARY_PREFIX bytes, as git decides. */
+    static boolean isBinary(byte[] contents) {
+        for (int i = 0; i < Math.min(contents.length, BINARY_PREFIX); i += 1) {
+            if (contents[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the merge of OURS and THEIRS, two versions of BASE. */
+    static Result merge3(byte[] base, byte[] ours, byte[] theirs) {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        List<byte[]> o = new ArrayList<byte[]>();
+        List<byte[]> a = new ArrayList<byte[]>();
+        List<byte[]> b = new ArrayList<byte[]>();
+        int[] oIds = lines(base, o, ids);
+        int[] aIds = lines(ours, a, ids);
+        int[] bIds = lines(theirs, b, ids);
+        int[] matchA = matches(oIds, aIds);
+        int[] matchB = matches(oIds, bIds);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean conflict = false;
+        int i = 0;
+        int ia = 0;
+        int ib = 0;
+        while (i < oIds.length || ia < aIds.length || ib < bIds.length) {
+            if (i < oIds.length && matchA[i] == ia && matchB[i] == ib) {
+                write(out, o, i, i + 1);
+                i += 1;
+                ia += 1;
+                ib += 1;
+                continue;
+            }
+            int j = i;
+            while (j < oIds.length && (matchA[j] < 0 || matchB[j] < 0)) {
+                j += 1;
+            }
+            int ja = j < oIds.length ? matchA[j] : aIds.length;
+            int jb = j < oIds.length ? matchB[j] : bIds.length;
+            boolean aSame = same(oIds, i, j, aIds, ia, ja);
+            boolean bSame = same(oIds, i, j, bIds, ib, jb);
+            if (aSame) {
+                write(out, b, ib, jb);
+            } else if (bSame || same(aIds, ia, ja, bIds, ib, jb)) {
+                write(out, a, ia, ja);
+            } else {
+                conflict = true;
+                write(out, START);
+                write(out, a, ia, ja);
+                write(out, MIDDLE);
+                write(out, b, ib, jb);
+                write(out, END);
+            }
+            i = j;
+            ia = ja;
+            ib = jb;
+        }
+        return new Result(out.toByteArray(), conflict);
+    }
+
+    /** Return, for each line of A, the index of the line of B it is matched
+     *  to in a longest common subsequence of A and B, or -1. */
+    static int[] matches(int[] a, int[] b) {
+        int[] match = new int[a.length];
+        Arrays.fill(match, -1);
+        lcs(a, 0, a.length, b, 0, b.length, match);
+        return match;
+    }
+
+    /** Match the lines of A[ALO..AHI) with those of B[BLO..BHI) in MATCH. */
+    private static void lcs(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi, int[] match) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            match[aLo] = bLo;
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            match[aHi - 1] = bHi - 1;
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+        int[] split = middle(a, aLo, aHi, b, bLo, bHi);
+        if (split == null) {
+            return;
+        }
+        lcs(a, aLo, aLo + split[0], b, bLo, bLo + split[1], match);
+        lcs(a, aLo + split[0], aHi, b, bLo + split[1], bHi, match);
+    }
+
+    /** Return the offsets {x, y} into A[ALO..AHI) and B[BLO..BHI) of a point
+     *  on an optimal edit path where the forward and reverse searches meet,
+     *  or null if the ranges have no line in common. Both ranges are non-empty
+     *  and differ in their first and last lines. */
+    private static int[] middle(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        int[] v1 = new int[length];
+        int[] v2 = new int[length];
+        Arrays.fill(v1, -1);
+        Arrays.fill(v2, -1);
+        v1[offset + 1] = 0;
+        v2[offset + 1] = 0;
+        int delta = n - m;
+        boolean front = delta % 2 != 0;
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1Offset - 1] < v1[k1Offset + 1])) {
+                    x1 = v1[k1Offset + 1];
+                } else {
+                    x1 = v1[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aLo + x1] == b[bLo + y1]) {
+                    x1 += 1;
+                    y1 += 1;
+                }
+                v1[k1Offset] = x1;
+                if (x1 > n) {
+                    k1end += 2;
+                } else if (y1 > m) {
+                    k1start += 2;
+                } else if (front) {
+                    int k2Offset = offset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < length && v2[k2Offset] != -1
+                            && x1 >= n - v2[k2Offset]) {
+                        return split(x1, y1, n, m);
+                    }
+                }
+            }
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2Offset - 1] < v2[k2Offset + 1])) {
+                    x2 = v2[k2Offset + 1];
+                } else {
+                    x2 = v2[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aHi - x2 - 1] == b[bHi - y2 - 1]) {
+                    x2 += 1;
+                    y2 += 1;
+                }
+                v2[k2Offset] = x2;
+                if (x2 > n) {
+                    k2end += 2;
+                } else if (y2 > m) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < length && v1[k1Offset] != -1) {
+                        int x1 = v1[k1Offset];
+                        int y1 = offset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            return split(x1, y1, n, m);
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Return {X, Y} as a split point of ranges of lengths N and M, or null if
+     *  it is a corner and splitting there would not make progress. */
+    private static int[] split(int x, int y, int n, int m) {
+        if ((x == 0 && y == 0) || (x == n && y == m)) {
+            return null;
+        }
+        return new int[] {x, y};
+    }
+
+    /** Return true if A[ALO..AHI) and B[BLO..BHI) hold the same lines. */
+    private static boolean same(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+        return aHi - aLo == bHi - bLo
+                && Arrays.equals(a, aLo, aHi, b, bLo, bHi);
+    }
+
+    /** Split CONTENTS into lines, each with its line terminator, add them to
+     *  LINES, and return their IDs in IDS, which gives equal lines equal IDs. */
+    private static int[] lines(byte[] contents, List<byte[]> lines, Map<String, Integer> ids) {
+        int start = 0;
+        for (int i = 0; i < contents.length; i += 1) {
+            if (contents[i] == '\n' || i == contents.length - 1) {
+                lines.add(Arrays.copyOfRange(contents, start, i + 1));
+                start = i + 1;
+            }
+        }
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            String key = new String(lines.get(i), StandardCharsets.ISO_8859_1);
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /** Write LINES[FROM..TO) to OUT. */
+    private static void write(ByteArrayOutputStream out, List<byte[]> lines, int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            out.write(lines.get(i), 0, lines.get(i).length);
+        }
+    }
+
+    /** Write the marker S to OUT. */
+    private static void write(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,226 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Repository.LOCK;
+
+/** Runs Gitlet commands on the repository in the current directory from
+ *  Java, for Main, Daemon, or any program that runs commands in batches.
+ *
+ *  A command prints to the stream of the session that runs it and reports
+ *  failure by throwing a GitletException with the message the command line
+ *  would show; it never exits the JVM. The commands of one process run one at
+ *  a time, and each starts by forgetting what earlier commands read of the
+ *  repository, so a command that failed halfway, or a command run by another
+ *  process, leaves nothing stale behind.
+ *
+ *  @author ChaoYuan Lin
+ */
+public class GitletSession {
+
+    /** Option of init that chooses the object format. */
+    private static final String OBJECT_FORMAT = "--object-format=";
+
+    /** Where the commands of this session print. */
+    private final PrintStream out;
+
+    /** A session that prints to standard output. */
+    public GitletSession() {
+        this(System.out);
+    }
+
+    /** A session that prints to OUT. */
+    public GitletSession(PrintStream out) {
+        this.out = out;
+    }
+
+    /** Run the command ARGS, as given to Main, and return what it prints. */
+    public static String run(String... args) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        new GitletSession(out).execute(args);
+        out.flush();
+        return bytes.toString();
+    }
+
+    /** Run the command ARGS, as given to Main. Inside a repository the command
+     *  holds the lock on LOCK while it runs, so that commands of other processes,
+     *  a daemon's included, do not interleave with it. The daemon command itself
+     *  takes neither that lock nor this class's monitor: the daemon runs each
+     *  request through execute, and so holds both only while it runs a
+     *  command, not while it waits for one. */
+    public void execute(String... args) {
+        if (args.length == 0) {
+            throw Utils.error("Please enter a command.");
+        }
+        if (args[0].equals("daemon")) {
+            daemon(args);
+            return;
+        }
+        synchronized (GitletSession.class) {
+            Index.reload();
+            CommitIndex.reload();
+            CommitGraph.reload();
+            MessageIndex.reload();
+            Pack.reload();
+            Config.reload();
+            Hash.reload();
+            Worktree.reload();
+            if (!GITLET_DIR.isDirectory()) {
+                dispatch(args);
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(LOCK.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    dispatch(args);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    /** Execute the command described by ARGS. */
+    private void dispatch(String[] args) {
+        String firstArg = args[0];
+        int len = args.length;
+        Repository gitlet = new Repository(out);
+
+        switch(firstArg) {
+            case "init":
+                if (len == 2 && args[1].startsWith(OBJECT_FORMAT)) {
+                    gitlet.init(args[1].substring(OBJECT_FORMAT.length()));
+                } else {
+                    numCommands(1, len);
+                    gitlet.init(Hash.SHA1);
+                }
+                break;
+
+            case "add":
+                if (len < 2) {
+                    numCommands(2, len);
+                }
+                gitlet.add(Arrays.copyOfRange(args, 1, len));
+                break;
+
+            case "commit":
+                numCommands(2, len);
+                String message = args[1];
+                gitlet.commit(message);
+                break;
+
+            case "rm":
+                numCommands(2, len);
+                gitlet.rm(args[1]);
+                break;
+
+            case "log":
+                gitlet.log(Repository.LogFilter.parse(args, 1));
+                break;
+
+            case "branch":
+                numCommands(2, len);
+                gitlet.branch(args[1]);
+                break;
+
+            case "checkout":
+                if (len == 2) {
+                    gitlet.checkoutBranch(args[1]);
+                } else if (len == 3) {
+                    if (!args[1].equals("--")) {
+                        throw Utils.error("Incorrect operands.");
+                    }
+                    gitlet.checkoutFile(gitlet.loadHead(gitlet.getBranchName()).getID() ,args[2]);
+                } else if (len == 4) {
+                    if (!args[2].equals("--")) {
+                        throw Utils.error("Incorrect operands.");
+                    }
+                    gitlet.checkoutFile(args[1], args[3]);
+                } else {
+                    throw Utils.error("Incorrect operands.");
+                }
+                break;
+
+            case "global-log":
+                gitlet.globalLog(Repository.LogFilter.parse(args, 1));
+                break;
+
+            case "find":
+                if (len == 3) {
+                    gitlet.find(args[1], args[2]);
+                } else {
+                    numCommands(2, len);
+                    gitlet.find(null, args[1]);
+                }
+                break;
+
+            case "status":
+                numCommands(1, len);
+                gitlet.status();
+                break;
+
+            case "rm-branch":
+                numCommands(2, len);
+                gitlet.rmBranch(args[1]);
+                break;
+
+            case "reset":
+                numCommands(2, len);
+                gitlet.reset(args[1]);
+                break;
+
+            case "merge":
+                numCommands(2, len);
+                gitlet.merge(args[1]);
+                break;
+
+            case "pack":
+                numCommands(1, len);
+                gitlet.pack();
+                break;
+
+            case "gc":
+                if (len > 2) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                gitlet.gc(len == 2 ? args[1] : null);
+                break;
+
+            default :
+                out.println("No command with that name exists.");
+                break;
+        }
+    }
+
+    /** Execute the daemon command described by ARGS. */
+    private void daemon(String[] args) {
+        if (args.length == 1) {
+            Daemon.serve(false);
+        } else if (args.length == 2 && args[1].equals("--watch")) {
+            Daemon.serve(true);
+        } else if (args.length == 2 && args[1].equals("stop")) {
+            Daemon.stop(out);
+        } else {
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+
+    /** Throw an error unless the command has EXPECT words, LEN being how many
+     *  it has. */
+    private static void numCommands(int expect, int len) {
+        if (len != expect) {
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+}
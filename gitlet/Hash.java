@@ -0,0 +1,154 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static gitlet.Utils.*;
+
+/** The object format of the repository, and the hashing of objects into IDs.
+ *
+ *  Objects are named by SHA-1, or by SHA-256 in a repository made with
+ *  "init --object-format=sha256". The choice is recorded in CONFIG when the
+ *  repository is made; a repository without one uses SHA-1.
+ *
+ *  Each thread keeps one MessageDigest per algorithm and resets it for every
+ *  hash instead of looking one up each time. A file larger than MAP_THRESHOLD
+ *  is hashed straight from a memory map of it, MAP_SIZE bytes at a time, so
+ *  its contents are never copied onto the heap.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Hash {
+
+    /** Names of the object formats, as given to init. */
+    static final String SHA1 = "sha1", SHA256 = "sha256";
+
+    /** Key of the object format in CONFIG. */
+    private static final String FORMAT_KEY = "objectFormat";
+    /** Files at least this large are hashed through a memory map. */
+    private static final long MAP_THRESHOLD = 256 * 1024;
+    /** Largest part of a file mapped at once. */
+    private static final long MAP_SIZE = 64L << 20;
+
+    /** Digests of this thread, one per object format. */
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST =
+            ThreadLocal.withInitial(() -> newDigest("SHA-1"));
+    private static final ThreadLocal<MessageDigest> SHA256_DIGEST =
+            ThreadLocal.withInitial(() -> newDigest("SHA-256"));
+
+    /** The object format of this repository, or null until CONFIG is read. */
+    private static volatile String format;
+
+    /** Return the object format of this repository, SHA1 or SHA256. */
+    static String format() {
+        String f = format;
+        if (f == null) {
+            f = Config.get(FORMAT_KEY, SHA1);
+            checkFormat(f);
+            format = f;
+        }
+        return f;
+    }
+
+    /** Throw an error unless F names an object format. */
+    static void checkFormat(String f) {
+        if (!f.equals(SHA1) && !f.equals(SHA256)) {
+            throw error("Unknown object format %s.", f);
+        }
+    }
+
+    /** Make F the object format of the repository being made, recording it in
+     *  CONFIG. */
+    static void setFormat(String f) {
+        checkFormat(f);
+        Config.set(FORMAT_KEY, f);
+        format = f;
+    }
+
+    /** Forget the object format read by this process, so that CONFIG is read
+     *  again when next needed. */
+    static void reload() {
+        format = null;
+    }
+
+    /** Return the length of an ID in hex digits. */
+    static int length() {
+        return width() * 2;
+    }
+
+    /** Return the length of an ID in bytes. */
+    static int width() {
+        return format().equals(SHA256) ? 32 : 20;
+    }
+
+    /** Return the ID of the concatenation of VALS, which may be any mixture of
+     *  byte arrays, ByteBuffers and Strings. Strings are hashed as UTF-8 and
+     *  buffers from their position to their limit, which is left unchanged. */
+    static String of(Object... vals) {
+        return inFormat(format(), vals);
+    }
+
+    /** Return the hash in object format F of the concatenation of VALS, as in
+     *  of(Object...). */
+    static String inFormat(String f, Object... vals) {
+        MessageDigest md = digest(f);
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else if (val instanceof ByteBuffer) {
+                md.update(((ByteBuffer) val).duplicate());
+            } else {
+                throw new IllegalArgumentException("improper type to hash");
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /** Return the ID of the contents of FILE. */
+    static String of(File file) {
+        MessageDigest md = digest(format());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    continue;
+                }
+                md.update(buffer.array(), 0, buffer.position());
+            } else {
+                for (long at = 0; at < size; at += MAP_SIZE) {
+                    md.update(channel.map(FileChannel.MapMode.READ_ONLY, at,
+                            Math.min(MAP_SIZE, size - at)));
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return toHex(md.digest());
+    }
+
+    /** Return this thread's digest for object format F, reset. */
+    private static MessageDigest digest(String f) {
+        MessageDigest md = f.equals(SHA256) ? SHA256_DIGEST.get() : SHA1_DIGEST.get();
+        md.reset();
+        return md;
+    }
+
+    /** Return a new digest for ALGORITHM. */
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support " + algorithm);
+        }
+    }
+}
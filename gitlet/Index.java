@@ -0,0 +1,414 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.INDEX;
+import static gitlet.Repository.REMOVAL_DIR;
+import static gitlet.Repository.STAGE_DIR;
+
+/** The staging area, kept in the single binary file INDEX. Each entry is a
+ *  path with the ID of its blob, its mode, size, modification time and inode,
+ *  and whether it is staged for addition, staged for removal, or only
+ *  tracked. Staged contents are in the blob store already; the index only
+ *  names them.
+ *
+ *  The size, mtime and inode of an entry are those of the working file when
+ *  its blob ID was last computed, so a file whose stat still matches need
+ *  not be read and hashed again (see blobId). As in git, an entry whose mtime
+ *  is not older than the index file itself is "racily clean": the file may
+ *  have changed within the same clock tick, so it is hashed anyway.
+ *
+ *  The file holds the magic "GLI", a version, the ID width and the entry
+ *  count, then the entries sorted by path: path, raw blob ID, mode, size,
+ *  mtime in nanoseconds, inode and state. The index is read once per process
+ *  and changed in memory; write replaces the file through a temporary file
+ *  and a rename, so it is never seen half written.
+ *
+ *  Repositories made by earlier versions keep one file per entry in
+ *  STAGE_DIR and REMOVAL_DIR; those entries are read into the index and the
+ *  directories are deleted the next time it is written.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Index {
+
+    /** State of an entry that is not staged, kept for its stat. */
+    static final int TRACKED = 0;
+    /** State of an entry staged for addition. */
+    static final int STAGED = 1;
+    /** State of an entry staged for removal. */
+    static final int REMOVED = 2;
+
+    /** Mode of a regular file. */
+    private static final int REGULAR = 0100644;
+    /** Mode of an executable file. */
+    private static final int EXECUTABLE = 0100755;
+
+    /** First bytes of the index file. */
+    private static final byte[] MAGIC = {'G', 'L', 'I'};
+    /** Version of the index file format. */
+    private static final int VERSION = 2;
+    /** Version of the index file format without inodes. */
+    private static final int NO_INODE_VERSION = 1;
+
+    /** One path in the index. */
+    static class Entry {
+        final String blobId;
+        final int mode;
+        final long size;
+        final long mtime;
+        final long inode;
+        final int state;
+
+        Entry(String blobId, int mode, long size, long mtime, long inode, int state) {
+            this.blobId = blobId;
+            this.mode = mode;
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.state = state;
+        }
+
+        /** An entry for BLOBID with STATE and the stat of file F. */
+        Entry(String blobId, File f, int state) {
+            this.blobId = blobId;
+            this.state = state;
+            long[] stat = stat(f);
+            if (stat == null) {
+                mode = REGULAR;
+                size = -1;
+                mtime = 0;
+                inode = 0;
+            } else {
+                mode = (int) stat[0];
+                size = stat[1];
+                mtime = stat[2];
+                inode = stat[3];
+            }
+        }
+
+        /** Return true if STAT, that of the working file as stat returns it,
+         *  is the stat recorded in this entry, and the entry is not racily
+         *  clean. */
+        boolean matches(long[] stat) {
+            if (size < 0 || mtime >= indexTime) {
+                return false;
+            }
+            return stat != null && stat[0] == mode && stat[1] == size
+                    && stat[2] == mtime && stat[3] == inode;
+        }
+    }
+
+    /** The entries by path, or null until the index is read. */
+    private static TreeMap<String, Entry> entries;
+    /** True if ENTRIES differ from the index file. */
+    private static boolean changed;
+    /** Modification time of the index file when it was read, in nanoseconds. */
+    private static long indexTime;
+
+    /** Stage BLOBID, the current contents of the file at PATH, for addition. */
+    static void stage(String path, String blobId) {
+        put(path, new Entry(blobId, join(Repository.CWD, path), STAGED));
+    }
+
+    /** Stage PATH, whose blob in the head commit is BLOBID, for removal. */
+    static void remove(String path, String blobId) {
+        put(path, new Entry(blobId, REGULAR, -1, 0, 0, REMOVED));
+    }
+
+    /** Record that the working file at PATH, which is not staged, holds the
+     *  blob BLOBID. */
+    static void track(String path, String blobId) {
+        put(path, new Entry(blobId, join(Repository.CWD, path), TRACKED));
+    }
+
+    /** Return the ID of the blob holding the contents of the working file F
+     *  at PATH. The file is only read and hashed if its stat differs from
+     *  that recorded in the index; if it is, the result is recorded for the
+     *  next call unless PATH is staged. */
+    static String blobId(String path, File f) {
+        String id = cachedId(path, f);
+        if (id != null) {
+            return id;
+        }
+        id = new Blob(f).getId();
+        Entry e = get(path);
+        if (e == null || e.state == TRACKED) {
+            track(path, id);
+        }
+        return id;
+    }
+
+    /** Return the blob ID recorded for the working file F at PATH if its stat
+     *  still matches, or else null. The stat comes from Worktree, which may
+     *  know it without asking the file system. Only reads the index, so it
+     *  may be called from several threads at once. */
+    static String cachedId(String path, File f) {
+        Entry e = get(path);
+        if (e != null && e.state != REMOVED && e.matches(Worktree.stat(path, f))) {
+            return e.blobId;
+        }
+        return null;
+    }
+
+    /** Turn the entries staged for addition into tracked entries and drop the
+     *  entries staged for removal, once they have been committed. */
+    static void committed() {
+        Iterator<Map.Entry<String, Entry>> it = load().entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            Entry entry = e.getValue();
+            if (entry.state == STAGED) {
+                e.setValue(new Entry(entry.blobId, entry.mode, entry.size, entry.mtime,
+                        entry.inode, TRACKED));
+            } else if (entry.state == REMOVED) {
+                it.remove();
+            }
+        }
+        changed = true;
+    }
+
+    /** Replace every entry with a tracked entry for each file in FILES, a map
+     *  from path to the blob ID now in the working directory at that path.
+     *  The files in WRITTEN were just written and are given a fresh stat; the
+     *  others were left alone because their entries showed them clean, and
+     *  keep those entries' stat. */
+    static void reset(Map<String, String> files, Set<String> written) {
+        TreeMap<String, Entry> old = load();
+        entries = new TreeMap<String, Entry>();
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            Entry prev = old.get(e.getKey());
+            if (written.contains(e.getKey()) || prev == null) {
+                track(e.getKey(), e.getValue());
+            } else {
+                entries.put(e.getKey(), new Entry(e.getValue(), prev.mode, prev.size,
+                        prev.mtime, prev.inode, TRACKED));
+            }
+        }
+        changed = true;
+    }
+
+    /** Drop PATH from the index, if it is there. */
+    static void unstage(String path) {
+        if (load().remove(path) != null) {
+            changed = true;
+        }
+    }
+
+    /** Return the entry for PATH, or null if it is not in the index. */
+    static Entry get(String path) {
+        return load().get(path);
+    }
+
+    /** Return the paths whose entries have STATE, in sorted order. */
+    static List<String> paths(int state) {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : load().entrySet()) {
+            if (e.getValue().state == state) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    /** Drop every entry with STATE from the index. */
+    static void clear(int state) {
+        Iterator<Entry> it = load().values().iterator();
+        while (it.hasNext()) {
+            if (it.next().state == state) {
+                it.remove();
+                changed = true;
+            }
+        }
+    }
+
+    /** Write the index back to INDEX if it was changed. */
+    static void write() {
+        if (!changed) {
+            return;
+        }
+        File temp = join(INDEX.getParentFile(), INDEX.getName() + ".lock");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(Hash.width());
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writeString(out, e.getKey());
+                out.write(fromHex(entry.blobId));
+                out.writeInt(entry.mode);
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.inode);
+                out.writeByte(entry.state);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), INDEX.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        changed = false;
+        deleteLegacy(STAGE_DIR);
+        deleteLegacy(REMOVAL_DIR);
+    }
+
+    /** Set the entry for PATH to ENTRY. */
+    private static void put(String path, Entry entry) {
+        load().put(path, entry);
+        changed = true;
+    }
+
+    /** Forget the entries read by this process, discarding unwritten changes, so
+     *  that the index file is read again when next needed. */
+    static synchronized void reload() {
+        entries = null;
+        changed = false;
+    }
+
+    /** Return the entries, reading them from INDEX and any legacy staging
+     *  directories the first time. */
+    private static synchronized TreeMap<String, Entry> load() {
+        if (entries != null) {
+            return entries;
+        }
+        entries = new TreeMap<String, Entry>();
+        if (INDEX.isFile()) {
+            read();
+            indexTime = mtime(INDEX);
+        }
+        readLegacy(STAGE_DIR, STAGED);
+        readLegacy(REMOVAL_DIR, REMOVED);
+        return entries;
+    }
+
+    /** Read the entries in INDEX. */
+    private static void read() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(INDEX.toPath())))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            int version = in.readUnsignedByte();
+            if (!Arrays.equals(magic, MAGIC)
+                    || version != VERSION && version != NO_INODE_VERSION) {
+                throw error("Unknown format for the index.");
+            }
+            byte[] raw = new byte[in.readUnsignedByte()];
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                String path = readString(in);
+                in.readFully(raw);
+                int mode = in.readInt();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                long inode = version == VERSION ? in.readLong() : 0;
+                entries.put(path, new Entry(toHex(raw), mode, size, mtime, inode,
+                        in.readUnsignedByte()));
+            }
+        } catch (IOException excp) {
+            throw error("Corrupt index.");
+        }
+    }
+
+    /** Add the entries in the legacy staging directory DIR with STATE. An
+     *  entry holds the ID of a stored blob or, if written by the oldest
+     *  versions, the contents themselves, which are stored as a blob here. */
+    private static void readLegacy(File dir, int state) {
+        List<String> names = plainFilenamesIn(dir);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            byte[] contents = readContents(join(dir, name));
+            String id = new String(contents, StandardCharsets.UTF_8);
+            if (id.length() != UID_LENGTH || !id.matches("[0-9a-f]+") || !Blob.exists(id)) {
+                Blob b = new Blob(contents);
+                b.save();
+                id = b.getId();
+            }
+            entries.put(name, new Entry(id, REGULAR, -1, 0, 0, state));
+        }
+        changed = true;
+    }
+
+    /** Return the mode, size, mtime in nanoseconds and inode of F, or null if
+     *  F is not a regular file. The inode is 0 where the file system has no
+     *  unix attributes. */
+    static long[] stat(File f) {
+        try {
+            Map<String, Object> unix = Files.readAttributes(f.toPath(),
+                    "unix:mode,size,lastModifiedTime,ino,isRegularFile");
+            if (!(Boolean) unix.get("isRegularFile")) {
+                return null;
+            }
+            int perms = (Integer) unix.get("mode");
+            return new long[] {(perms & 0111) != 0 ? EXECUTABLE : REGULAR,
+                (Long) unix.get("size"), nanos((FileTime) unix.get("lastModifiedTime")),
+                (Long) unix.get("ino")};
+        } catch (UnsupportedOperationException excp) {
+            try {
+                BasicFileAttributes basic = Files.readAttributes(f.toPath(),
+                        BasicFileAttributes.class);
+                if (!basic.isRegularFile()) {
+                    return null;
+                }
+                return new long[] {f.canExecute() ? EXECUTABLE : REGULAR, basic.size(),
+                    nanos(basic.lastModifiedTime()), 0};
+            } catch (IOException e) {
+                return null;
+            }
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Return the modification time of F in nanoseconds. */
+    private static long mtime(File f) {
+        try {
+            return nanos(Files.getLastModifiedTime(f.toPath()));
+        } catch (IOException excp) {
+            return 0;
+        }
+    }
+
+    /** Return T in nanoseconds. */
+    private static long nanos(FileTime t) {
+        return t.to(TimeUnit.NANOSECONDS);
+    }
+
+    /** Delete the legacy staging directory DIR and its entries. */
+    private static void deleteLegacy(File dir) {
+        List<String> names = plainFilenamesIn(dir);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            join(dir, name).delete();
+        }
+        dir.delete();
+    }
+}
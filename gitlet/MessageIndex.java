@@ -0,0 +1,418 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.MESSAGE_INDEX;
+import static gitlet.Repository.MESSAGE_JOURNAL;
+
+/** A persistent index of commit messages, so that find answers without
+ *  reading any commit.
+ *
+ *  The index is a base segment, MESSAGE_INDEX, and a journal, MESSAGE_JOURNAL.
+ *  Each new commit is appended to the journal as its raw ID and message; once
+ *  the journal holds JOURNAL_LIMIT commits it is folded into a new base.
+ *
+ *  The base is memory-mapped. It holds the magic "GMIX", a version, the ID
+ *  width and the numbers of commits, distinct messages and trigrams; then
+ *  the sorted trigrams, the start of each trigram's postings, the postings
+ *  (the positions of the messages containing the trigram), the offset of
+ *  each message record and the records, sorted by message: the UTF-8
+ *  message and the raw IDs of its commits. Exact and prefix searches are
+ *  binary searches over the records; a substring search reads the messages
+ *  listed under the rarest of its trigrams.
+ *
+ *  If the base and journal together do not hold every commit, as in a
+ *  repository made by an earlier version, the base is rebuilt by reading
+ *  every commit once. Commits are only ever added to the index, so gc, which
+ *  deletes commits, drops it; it is rebuilt when next needed.
+ *
+ *  @author ChaoYuan Lin
+ */
+class MessageIndex {
+
+    /** Magic number at the start of the base segment. */
+    private static final int MAGIC = 0x474d4958;
+    /** Version of the base segment layout. */
+    private static final int VERSION = 1;
+    /** Size of the header of the base segment. */
+    private static final int HEADER_SIZE = 24;
+    /** Number of journal entries that causes the journal to be folded into the base. */
+    private static final int JOURNAL_LIMIT = 1024;
+
+    /** The base loaded by this process, or null if not yet loaded. */
+    private static MessageIndex loaded;
+
+    /** The mapped base segment. */
+    private final ByteBuffer table;
+    /** Width of a raw ID and the numbers of commits, messages and trigrams. */
+    private final int width, commits, messages, grams;
+    /** Positions of the sections of the base. */
+    private final int gramStarts, postings, records;
+    /** The commits in the journal: message by commit ID. */
+    private final TreeMap<String, String> journal;
+
+    private MessageIndex(ByteBuffer table, TreeMap<String, String> journal) {
+        this.table = table;
+        this.journal = journal;
+        this.width = table.getInt(8);
+        this.commits = table.getInt(12);
+        this.messages = table.getInt(16);
+        this.grams = table.getInt(20);
+        this.gramStarts = HEADER_SIZE + grams * 8;
+        int postingCount = table.getInt(gramStarts + grams * 4);
+        this.postings = gramStarts + (grams + 1) * 4;
+        this.records = postings + postingCount * 4;
+    }
+
+    /** Record that commit ID has MESSAGE. */
+    static void add(String id, String message) {
+        if (!MESSAGE_INDEX.isFile()) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(MESSAGE_JOURNAL.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND)))) {
+            out.write(fromHex(id));
+            writeString(out, message);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        loaded = null;
+        if (readJournal().size() >= JOURNAL_LIMIT) {
+            MessageIndex index = load();
+            TreeMap<String, TreeSet<String>> all = index.baseMessages();
+            for (Map.Entry<String, String> e : index.journal.entrySet()) {
+                all.computeIfAbsent(e.getValue(), k -> new TreeSet<String>()).add(e.getKey());
+            }
+            write(all);
+        }
+    }
+
+    /** Forget the index read by this process, so that it is read again when
+     *  next needed. */
+    static void reload() {
+        loaded = null;
+    }
+
+    /** Delete the index, which may list commits that no longer exist, so that
+     *  it is rebuilt when next needed. */
+    static void clear() {
+        MESSAGE_INDEX.delete();
+        MESSAGE_JOURNAL.delete();
+        loaded = null;
+    }
+
+    /** Return the IDs of the commits whose message is MESSAGE, in sorted order. */
+    static List<String> exact(String message) {
+        MessageIndex index = load();
+        TreeSet<String> result = new TreeSet<String>();
+        int i = index.lowerBound(message);
+        if (i < index.messages && index.messageAt(i).equals(message)) {
+            index.addIds(i, result);
+        }
+        for (Map.Entry<String, String> e : index.journal.entrySet()) {
+            if (e.getValue().equals(message)) {
+                result.add(e.getKey());
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /** Return the IDs of the commits whose message starts with PREFIX, in sorted
+     *  order. */
+    static List<String> prefix(String prefix) {
+        MessageIndex index = load();
+        TreeSet<String> result = new TreeSet<String>();
+        for (int i = index.lowerBound(prefix);
+             i < index.messages && index.messageAt(i).startsWith(prefix); i += 1) {
+            index.addIds(i, result);
+        }
+        for (Map.Entry<String, String> e : index.journal.entrySet()) {
+            if (e.getValue().startsWith(prefix)) {
+                result.add(e.getKey());
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /** Return the IDs of the commits whose message contains TEXT, in sorted
+     *  order. */
+    static List<String> contains(String text) {
+        MessageIndex index = load();
+        TreeSet<String> result = new TreeSet<String>();
+        for (int i : index.candidates(text)) {
+            if (index.messageAt(i).contains(text)) {
+                index.addIds(i, result);
+            }
+        }
+        for (Map.Entry<String, String> e : index.journal.entrySet()) {
+            if (e.getValue().contains(text)) {
+                result.add(e.getKey());
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /** Return the index, rebuilding the base first if it is missing or does
+     *  not cover every commit. */
+    private static MessageIndex load() {
+        if (loaded != null) {
+            return loaded;
+        }
+        if (MESSAGE_INDEX.isFile()) {
+            MessageIndex index = new MessageIndex(map(MESSAGE_INDEX), readJournal());
+            if (index.commits + index.journal.size() == CommitIndex.size()) {
+                loaded = index;
+                return loaded;
+            }
+        }
+        rebuild();
+        loaded = new MessageIndex(map(MESSAGE_INDEX), readJournal());
+        return loaded;
+    }
+
+    /** Rebuild the base from every commit in the repository. */
+    private static void rebuild() {
+        TreeMap<String, TreeSet<String>> all = new TreeMap<String, TreeSet<String>>();
+        for (String id : Commit.getCommitIds()) {
+            String message = Commit.findCommit(id).getMessage();
+            all.computeIfAbsent(message, k -> new TreeSet<String>()).add(id);
+        }
+        write(all);
+    }
+
+    /** Return the commits in the journal. A record cut short by an interrupted
+     *  append is ignored. */
+    private static TreeMap<String, String> readJournal() {
+        TreeMap<String, String> result = new TreeMap<String, String>();
+        if (!MESSAGE_JOURNAL.isFile()) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(MESSAGE_JOURNAL.toPath())))) {
+            byte[] raw = new byte[Hash.width()];
+            while (true) {
+                in.readFully(raw);
+                String message = readString(in);
+                result.put(toHex(raw), message);
+            }
+        } catch (EOFException excp) {
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return every message in the base with the IDs of its commits. */
+    private TreeMap<String, TreeSet<String>> baseMessages() {
+        TreeMap<String, TreeSet<String>> result = new TreeMap<String, TreeSet<String>>();
+        for (int i = 0; i < messages; i += 1) {
+            TreeSet<String> ids = new TreeSet<String>();
+            addIds(i, ids);
+            result.put(messageAt(i), ids);
+        }
+        return result;
+    }
+
+    /** Return the positions of the messages that may contain TEXT: those listed
+     *  under the rarest trigram of TEXT, or all of them if TEXT is too short to
+     *  have a trigram. */
+    private int[] candidates(String text) {
+        if (text.length() < 3) {
+            int[] all = new int[messages];
+            for (int i = 0; i < messages; i += 1) {
+                all[i] = i;
+            }
+            return all;
+        }
+        int bestStart = 0;
+        int bestEnd = Integer.MAX_VALUE;
+        for (int i = 0; i + 3 <= text.length(); i += 1) {
+            int g = findGram(gram(text, i));
+            if (g < 0) {
+                return new int[0];
+            }
+            int start = table.getInt(gramStarts + g * 4);
+            int end = table.getInt(gramStarts + (g + 1) * 4);
+            if (end - start < bestEnd - bestStart) {
+                bestStart = start;
+                bestEnd = end;
+            }
+        }
+        int[] result = new int[bestEnd - bestStart];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = table.getInt(postings + (bestStart + i) * 4);
+        }
+        return result;
+    }
+
+    /** Return the position of trigram G in the base, or -1. */
+    private int findGram(long g) {
+        int lo = 0;
+        int hi = grams;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long key = table.getLong(HEADER_SIZE + mid * 8);
+            if (key == g) {
+                return mid;
+            } else if (key < g) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Return the position of the first message in the base that is not less
+     *  than S. */
+    private int lowerBound(String s) {
+        int lo = 0;
+        int hi = messages;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (messageAt(mid).compareTo(s) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Return the I-th message of the base. */
+    private String messageAt(int i) {
+        int at = table.getInt(records + i * 4);
+        byte[] utf8 = new byte[table.getInt(at)];
+        table.get(at + 4, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /** Add the IDs of the commits with the I-th message of the base to RESULT. */
+    private void addIds(int i, TreeSet<String> result) {
+        int at = table.getInt(records + i * 4);
+        at += 4 + table.getInt(at);
+        int count = table.getInt(at);
+        byte[] raw = new byte[width];
+        for (int k = 0; k < count; k += 1) {
+            table.get(at + 4 + k * width, raw);
+            result.add(toHex(raw));
+        }
+    }
+
+    /** Return the trigram of the three characters of S at I. */
+    private static long gram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    /** Write ALL, the IDs of the commits with each message, as the new base
+     *  segment, replacing the old base and journal. */
+    private static void write(TreeMap<String, TreeSet<String>> all) {
+        List<String> sorted = new ArrayList<String>(all.keySet());
+        TreeMap<Long, List<Integer>> index = new TreeMap<Long, List<Integer>>();
+        int commitCount = 0;
+        int postingCount = 0;
+        for (int m = 0; m < sorted.size(); m += 1) {
+            String message = sorted.get(m);
+            commitCount += all.get(message).size();
+            TreeSet<Long> seen = new TreeSet<Long>();
+            for (int i = 0; i + 3 <= message.length(); i += 1) {
+                seen.add(gram(message, i));
+            }
+            for (long g : seen) {
+                index.computeIfAbsent(g, k -> new ArrayList<Integer>()).add(m);
+                postingCount += 1;
+            }
+        }
+        int width = Hash.width();
+        int records = HEADER_SIZE + index.size() * 8 + (index.size() + 1) * 4
+                + postingCount * 4;
+        int offset = records + sorted.size() * 4;
+
+        File temp = join(MESSAGE_INDEX.getParentFile(), MESSAGE_INDEX.getName() + ".lock");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(commitCount);
+            out.writeInt(sorted.size());
+            out.writeInt(index.size());
+            for (long g : index.keySet()) {
+                out.writeLong(g);
+            }
+            int start = 0;
+            for (List<Integer> list : index.values()) {
+                out.writeInt(start);
+                start += list.size();
+            }
+            out.writeInt(start);
+            for (List<Integer> list : index.values()) {
+                for (int m : list) {
+                    out.writeInt(m);
+                }
+            }
+            List<byte[]> utf8 = new ArrayList<byte[]>(sorted.size());
+            for (String message : sorted) {
+                byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+                utf8.add(bytes);
+                out.writeInt(offset);
+                offset += 4 + bytes.length + 4 + all.get(message).size() * width;
+            }
+            for (int m = 0; m < sorted.size(); m += 1) {
+                out.writeInt(utf8.get(m).length);
+                out.write(utf8.get(m));
+                TreeSet<String> ids = all.get(sorted.get(m));
+                out.writeInt(ids.size());
+                for (String id : ids) {
+                    out.write(fromHex(id));
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), MESSAGE_INDEX.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        MESSAGE_JOURNAL.delete();
+        loaded = null;
+    }
+
+    /** Map FILE read-only, checking its magic number and version. */
+    private static ByteBuffer map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC
+                    || buf.getInt(4) != VERSION) {
+                throw error("Corrupt message index %s.", file.getPath());
+            }
+            return buf;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
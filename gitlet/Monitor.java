@@ -0,0 +1,272 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+
+/** A watcher of the working directory, run by a daemon started with
+ *  "daemon --watch", that records the path of everything created, changed or
+ *  deleted in JOURNAL, so that Worktree can bring its listing of the working
+ *  directory up to date by looking at those paths alone instead of walking
+ *  the whole tree.
+ *
+ *  JOURNAL is a text file. Its first line is a token naming this run of the
+ *  monitor; each further line is the path, relative to CWD, of a file or
+ *  directory that changed, or OVERFLOW if events were lost. A reader keeps the
+ *  token and how far it has read. When the token changes, because a new
+ *  monitor started or the journal outgrew JOURNAL_LIMIT and was begun again,
+ *  or when it reads OVERFLOW, it has to walk the working directory again.
+ *
+ *  The file system reports a change some time after it happens. Before a
+ *  command trusts the journal, sync creates a cookie file in CWD and waits
+ *  until the monitor has seen it; events arrive in order, so by then every
+ *  change made before the call is in the journal. Cookies are not journaled.
+ *
+ *  A WatchService watches single directories, so the monitor registers every
+ *  directory of the tree but .gitlet, and each new directory when its creation
+ *  is reported. Files made in a new directory before it is registered raise
+ *  no event, but the directory's own path is journaled, and Worktree lists a
+ *  changed directory in full. If a directory cannot be watched, no later sync
+ *  succeeds, and commands walk the tree as they would without a monitor.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Monitor implements Runnable {
+
+    /** The journal of changed paths. */
+    static final File JOURNAL = join(GITLET_DIR, "fsmonitor");
+    /** The line of JOURNAL recording that events were lost. */
+    static final String OVERFLOW = "!overflow";
+    /** Start of the names of the cookie files of sync. */
+    static final String COOKIE = ".gitlet-cookie-";
+    /** Size in bytes past which JOURNAL is begun again under a new token. */
+    private static final long JOURNAL_LIMIT = 1 << 20;
+    /** Milliseconds sync waits for its cookie. */
+    private static final long SYNC_TIMEOUT = 2000;
+
+    /** The monitor of this process, or null if there is none. */
+    private static volatile Monitor running;
+
+    /** The service watching the directories of the tree. */
+    private final WatchService watcher;
+    /** The path of each watched directory followed by '/', "" for CWD, by key. */
+    private final Map<WatchKey, String> dirs = new HashMap<WatchKey, String>();
+    /** Cookies seen and not yet claimed by sync. */
+    private final Set<String> cookies = new HashSet<String>();
+    /** The thread taking events from WATCHER. */
+    private final Thread thread;
+    /** The channel appending to JOURNAL. */
+    private FileChannel journal;
+    /** Number of cookies made so far. */
+    private int cookieCount;
+    /** True once a directory could not be watched. */
+    private volatile boolean broken;
+
+    private Monitor() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this, "gitlet-monitor");
+        thread.setDaemon(true);
+    }
+
+    /** Start watching the working directory, beginning a new JOURNAL. */
+    static void start() {
+        try {
+            Monitor m = new Monitor();
+            m.begin();
+            m.register(CWD.toPath(), "");
+            m.thread.start();
+            running = m;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Stop the monitor of this process, if any, and delete JOURNAL. */
+    static void stop() {
+        Monitor m = running;
+        if (m == null) {
+            return;
+        }
+        running = null;
+        try {
+            m.watcher.close();
+            m.thread.join();
+            m.journal.close();
+        } catch (IOException | InterruptedException excp) {
+            // The journal is deleted all the same.
+        }
+        JOURNAL.delete();
+    }
+
+    /** Return true once every change made to the working directory before
+     *  this call is in JOURNAL, or false, at once or after SYNC_TIMEOUT, if
+     *  there is no monitor or it cannot vouch for the journal. */
+    static boolean sync() {
+        Monitor m = running;
+        return m != null && !m.broken && m.awaitCookie();
+    }
+
+    /** Create a cookie and wait for the monitor to report it. */
+    private boolean awaitCookie() {
+        String name;
+        synchronized (this) {
+            cookieCount += 1;
+            name = COOKIE + cookieCount;
+        }
+        File cookie = join(CWD, name);
+        try {
+            if (!cookie.createNewFile()) {
+                return false;
+            }
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+            synchronized (this) {
+                while (!cookies.remove(name)) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0 || running != this) {
+                        return false;
+                    }
+                    wait(left);
+                }
+            }
+            return !broken;
+        } catch (IOException | InterruptedException excp) {
+            return false;
+        } finally {
+            cookie.delete();
+        }
+    }
+
+    /** Take events until the watch service is closed, journaling the path
+     *  of each. */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                String prefix = dirs.get(key);
+                StringBuilder lines = new StringBuilder();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        lines.append(OVERFLOW).append('\n');
+                        continue;
+                    }
+                    String name = event.context().toString();
+                    if (prefix == null || name.equals(".gitlet")) {
+                        continue;
+                    }
+                    if (prefix.isEmpty() && name.startsWith(COOKIE)) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            append(lines);
+                            lines.setLength(0);
+                            synchronized (this) {
+                                cookies.add(name);
+                                notifyAll();
+                            }
+                        }
+                        continue;
+                    }
+                    String path = prefix + name;
+                    Path p = CWD.toPath().resolve(path);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                            && Files.isDirectory(p)) {
+                        register(p, path + "/");
+                    }
+                    lines.append(path).append('\n');
+                }
+                append(lines);
+                if (!key.reset()) {
+                    dirs.remove(key);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException excp) {
+            return;
+        }
+    }
+
+    /** Watch DIR, whose path is PREFIX without its final '/', and every
+     *  directory below it but .gitlet. */
+    private void register(Path dir, String prefix) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs)
+                        throws IOException {
+                    if (d.getFileName().toString().equals(".gitlet") && !d.equals(dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    String rel = dir.relativize(d).toString().replace(File.separatorChar, '/');
+                    WatchKey key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                    dirs.put(key, rel.isEmpty() ? prefix : prefix + rel + "/");
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path f, IOException excp) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (ClosedWatchServiceException excp) {
+            return;
+        } catch (IOException excp) {
+            broken = true;
+        }
+    }
+
+    /** Begin JOURNAL again under a new token, replacing it atomically. */
+    private void begin() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        File temp = join(GITLET_DIR, JOURNAL.getName() + ".lock");
+        writeContents(temp, UUID.randomUUID().toString() + "\n");
+        Files.move(temp.toPath(), JOURNAL.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = FileChannel.open(JOURNAL.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /** Append LINES to JOURNAL, first beginning it again if it has grown
+     *  past JOURNAL_LIMIT. */
+    private void append(CharSequence lines) {
+        if (lines.length() == 0) {
+            return;
+        }
+        try {
+            if (journal.size() > JOURNAL_LIMIT) {
+                begin();
+            }
+            ByteBuffer buf = StandardCharsets.UTF_8.encode(lines.toString());
+            while (buf.hasRemaining()) {
+                journal.write(buf);
+            }
+        } catch (IOException excp) {
+            broken = true;
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.BLOBS_DIR;
+import static gitlet.Repository.COMMIT_DIR;
+import static gitlet.Repository.TREE_DIR;
+import static gitlet.Repository.PACK_DIR;
+
+/** A pack file: many objects stored one after another in a single file, with
+ *  a sorted index beside it, so that a repository does not need one file per
+ *  commit and blob.
+ *
+ *  pack-NAME.pack holds the magic "GPAK", a version and the object count,
+ *  then for each object its type, its length and its stored bytes: the binary
+ *  encoding of a commit or tree, or the header and compressed contents of a blob,
+ *  exactly as they would be stored loose. A blob may instead be stored as a
+ *  DELTA: the raw ID of a base blob followed by a deflated Delta that turns
+ *  the base into it.
+ *
+ *  pack-NAME.idx holds the magic "GPIX", a version, the ID width, the object
+ *  count, a 256-entry fan-out table, the sorted raw IDs, the type of each
+ *  object and the offset of each object in the pack.
+ *
+ *  Both files are memory-mapped, so each is limited to 2 GiB.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Pack {
+
+    /** Type of a commit object. */
+    static final int COMMIT = 1;
+    /** Type of a blob object. */
+    static final int BLOB = 2;
+    /** Type of a blob stored as a delta against another blob. */
+    static final int DELTA = 3;
+    /** Type of a tree object. */
+    static final int TREE = 4;
+
+    /** Magic numbers of the pack and index files. */
+    private static final int PACK_MAGIC = 0x4750414b, INDEX_MAGIC = 0x47504958;
+    /** Version of both layouts. */
+    private static final int VERSION = 1;
+    /** Size of the pack header. */
+    private static final int PACK_HEADER = 12;
+    /** Size of the index header, fan-out table included. */
+    private static final int INDEX_HEADER = 16 + 256 * 4;
+    /** Largest pack that can be mapped. */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    /** Blobs larger than this many bytes are left loose. */
+    private static final long BIG_FILE_THRESHOLD =
+            Long.getLong("gitlet.bigFileThreshold", 512L << 20);
+    /** Blobs larger than this many bytes are never stored as deltas. */
+    private static final long DELTA_LIMIT = 16L << 20;
+    /** Number of preceding blobs tried as delta bases. */
+    private static final int WINDOW = Integer.getInteger("gitlet.deltaWindow", 10);
+    /** Longest chain of deltas written. */
+    private static final int MAX_DEPTH = Integer.getInteger("gitlet.deltaDepth", 10);
+    /** Bytes of resolved delta contents kept in DELTA_CACHE. */
+    private static final long CACHE_BYTES = Long.getLong("gitlet.deltaCache", 64L << 20);
+
+    /** The packs of this repository, or null if not yet loaded. */
+    private static List<Pack> packs;
+
+    /** Contents of delta blobs and their bases resolved by this process, least
+     *  recently used first, so that reading a chain again does not re-apply it. */
+    private static final LinkedHashMap<String, byte[]> DELTA_CACHE =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    /** Total size of the contents in DELTA_CACHE. */
+    private static long cachedBytes;
+
+    /** The pack and index files. */
+    private final File packFile, indexFile;
+    /** The mapped pack and index. */
+    private final ByteBuffer data, index;
+    /** Width of a raw ID and number of objects. */
+    private final int width, count;
+
+    /** One object found in a pack: its type and its stored bytes. */
+    static class Entry {
+        final int type;
+        final ByteBuffer bytes;
+
+        Entry(int type, ByteBuffer bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+
+        /** Return a copy of the stored bytes. */
+        byte[] toArray() {
+            byte[] result = new byte[bytes.remaining()];
+            bytes.duplicate().get(result);
+            return result;
+        }
+
+        /** Return a stream over the stored bytes. */
+        InputStream stream() {
+            return new ByteBufferInputStream(bytes.duplicate());
+        }
+    }
+
+    private Pack(File indexFile) {
+        this.indexFile = indexFile;
+        String name = indexFile.getName();
+        this.packFile = join(PACK_DIR, name.substring(0, name.length() - 4) + ".pack");
+        this.index = map(indexFile, INDEX_MAGIC);
+        this.data = map(packFile, PACK_MAGIC);
+        this.width = index.getInt(8);
+        this.count = index.getInt(12);
+    }
+
+    /** Return the object ID from any pack, or null if no pack has it. */
+    static Entry find(String id) {
+        for (Pack p : packs()) {
+            int i = p.position(id);
+            if (i >= 0) {
+                return p.entry(i);
+            }
+        }
+        return null;
+    }
+
+    /** Return the contents of the packed blob ID that is stored as a delta,
+     *  applying it to its base, which is read like any other blob. */
+    static byte[] resolve(String id, Entry delta) {
+        synchronized (DELTA_CACHE) {
+            byte[] cached = DELTA_CACHE.get(id);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ByteBuffer bytes = delta.bytes.duplicate();
+        byte[] raw = new byte[id.length() / 2];
+        bytes.get(raw);
+        String baseId = toHex(raw);
+        byte[] base;
+        synchronized (DELTA_CACHE) {
+            base = DELTA_CACHE.get(baseId);
+        }
+        if (base == null) {
+            base = Blob.readContents(baseId);
+            cache(baseId, base);
+        }
+        byte[] result = Delta.apply(base, inflate(bytes));
+        cache(id, result);
+        return result;
+    }
+
+    /** Remember CONTENTS as the contents of blob ID, evicting the least
+     *  recently used contents beyond CACHE_BYTES. */
+    private static void cache(String id, byte[] contents) {
+        synchronized (DELTA_CACHE) {
+            if (DELTA_CACHE.put(id, contents) == null) {
+                cachedBytes += contents.length;
+            }
+            Iterator<byte[]> eldest = DELTA_CACHE.values().iterator();
+            while (cachedBytes > CACHE_BYTES && eldest.hasNext()) {
+                cachedBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Return true if writing the objects in OBJECTS, a map from each ID to
+     *  the directory it would be loose in, into one pack in place of the
+     *  existing packs and their loose copies is likely to take less space.
+     *  Each object is counted as it is stored now, loose or packed, and new
+     *  deltas are not looked for, so the pack written may be smaller still. */
+    static boolean worthRepacking(Map<String, File> objects) {
+        long current = 0;
+        for (File f : PACK_DIR.isDirectory() ? PACK_DIR.listFiles() : new File[0]) {
+            current += f.length();
+        }
+        long packed = PACK_HEADER + INDEX_HEADER;
+        for (Map.Entry<String, File> e : objects.entrySet()) {
+            File loose = join(e.getValue(), e.getKey());
+            long stored;
+            if (loose.isFile()) {
+                stored = loose.length();
+                current += stored;
+            } else {
+                Entry entry = find(e.getKey());
+                stored = entry == null ? 0 : entry.bytes.remaining();
+            }
+            packed += stored + 5 + Hash.width() + 9;
+        }
+        return packed < current;
+    }
+
+    /** Return true if some pack holds object ID. */
+    static boolean contains(String id) {
+        for (Pack p : packs()) {
+            if (p.position(id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the IDs of all packed objects of type TYPE. Blobs stored as
+     *  deltas count as BLOB. */
+    static List<String> ids(int type) {
+        List<String> result = new ArrayList<String>();
+        for (Pack p : packs()) {
+            for (int i = 0; i < p.count; i += 1) {
+                if (p.typeAt(i) == type || (type == BLOB && p.typeAt(i) == DELTA)) {
+                    result.add(p.idAt(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Return the packs of this repository. */
+    private static synchronized List<Pack> packs() {
+        if (packs == null) {
+            List<Pack> found = new ArrayList<Pack>();
+            List<String> names = plainFilenamesIn(PACK_DIR);
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(".idx")) {
+                        found.add(new Pack(join(PACK_DIR, name)));
+                    }
+                }
+            }
+            packs = found;
+        }
+        return packs;
+    }
+
+    /** Forget the loaded packs, after packs were added or deleted. */
+    static synchronized void reload() {
+        packs = null;
+    }
+
+    /** Return the position of ID in this pack's index, or -1. */
+    private int position(String id) {
+        if (id.length() != width * 2) {
+            return -1;
+        }
+        int first = Integer.parseInt(id.substring(0, 2), 16);
+        int lo = first == 0 ? 0 : index.getInt(16 + (first - 1) * 4);
+        int hi = index.getInt(16 + first * 4);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = idAt(mid).compareTo(id);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Return the I-th ID of the index as a hex string. */
+    private String idAt(int i) {
+        byte[] raw = new byte[width];
+        index.get(INDEX_HEADER + i * width, raw);
+        return toHex(raw);
+    }
+
+    /** Return the type of the I-th object. */
+    private int typeAt(int i) {
+        return index.get(INDEX_HEADER + count * width + i);
+    }
+
+    /** Return the I-th object. */
+    private Entry entry(int i) {
+        int offset = (int) index.getLong(INDEX_HEADER + count * (width + 1) + i * 8);
+        int type = data.get(offset);
+        int length = data.getInt(offset + 1);
+        return new Entry(type, data.slice(offset + 5, length));
+    }
+
+    /** Write every object of this pack that is not in KEEP to a loose file
+     *  as old as the pack, so that gc counts its grace period from when the
+     *  object was packed. */
+    private void loosen(Map<String, ?> keep) {
+        for (int i = 0; i < count; i += 1) {
+            String id = idAt(i);
+            if (keep.containsKey(id)) {
+                continue;
+            }
+            File dir = typeAt(i) == COMMIT ? COMMIT_DIR
+                : typeAt(i) == TREE ? TREE_DIR : BLOBS_DIR;
+            if (join(dir, id).exists()) {
+                continue;
+            }
+            if (!dir.isDirectory()) {
+                dir.mkdir();
+            }
+            if (typeAt(i) == DELTA) {
+                new Blob(resolve(id, entry(i))).saveLoose();
+            } else {
+                writeContents(join(dir, id), (Object) entry(i).toArray());
+            }
+            join(dir, id).setLastModified(packFile.lastModified());
+        }
+    }
+
+    /** Map FILE read-only, checking that it starts with MAGIC and VERSION. */
+    private static MappedByteBuffer map(File file, int magic) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.limit() < PACK_HEADER || buf.getInt(0) != magic
+                    || buf.getInt(4) != VERSION) {
+                throw error("Corrupt pack file %s.", file.getPath());
+            }
+            return buf;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Writes a new pack. Objects are appended in the order they are added;
+     *  finish writes the index and moves both files into place. */
+    static class Writer {
+
+        /** The temporary pack being written. */
+        private final File temp;
+        private final DataOutputStream out;
+        /** Offset and type of each object written, by ID. */
+        private final TreeMap<String, long[]> written = new TreeMap<String, long[]>();
+        /** Number of bytes written so far. */
+        private long size;
+
+        Writer() {
+            try {
+                if (!PACK_DIR.isDirectory() && !PACK_DIR.mkdir()) {
+                    throw new IOException("cannot create " + PACK_DIR.getPath());
+                }
+                temp = File.createTempFile("pack", ".tmp", PACK_DIR);
+                out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(temp.toPath()), 1 << 16));
+                out.writeInt(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(0);
+                size = PACK_HEADER;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /** Return true if LENGTH more bytes of object still fit in this pack. */
+        boolean fits(long length) {
+            return size + 5 + length <= MAX_SIZE;
+        }
+
+        /** Return true if object ID has been added. */
+        boolean contains(String id) {
+            return written.containsKey(id);
+        }
+
+        /** Append object ID of type TYPE whose stored bytes are the LENGTH
+         *  bytes of IN. */
+        void add(String id, int type, InputStream in, long length) {
+            try {
+                written.put(id, new long[] {size, type});
+                out.writeByte(type);
+                out.writeInt((int) length);
+                long copied = in.transferTo(out);
+                if (copied != length) {
+                    throw new IOException("object " + id + " changed while packing");
+                }
+                size += 5 + length;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /** Append object ID of type TYPE whose stored bytes are BYTES. */
+        void add(String id, int type, byte[] bytes) {
+            add(id, type, new ByteArrayInputStream(bytes), bytes.length);
+        }
+
+        /** Append the blobs in NAMES, which maps each blob ID to a path it is
+         *  stored under. Blobs are sorted by file name and then by size, and a
+         *  blob of at most DELTA_LIMIT bytes is stored as a delta against one of
+         *  the WINDOW blobs before it if that is smaller than storing it whole.
+         *  No chain of deltas is longer than MAX_DEPTH. */
+        void addBlobs(Map<String, String> names) {
+            List<String> order = new ArrayList<String>();
+            Map<String, Long> sizes = new HashMap<String, Long>();
+            for (String id : names.keySet()) {
+                long size = size(id);
+                if (size >= 0 && size <= BIG_FILE_THRESHOLD) {
+                    order.add(id);
+                    sizes.put(id, size);
+                }
+            }
+            order.sort(Comparator.comparing((String id) -> new File(names.get(id)).getName())
+                    .thenComparing(names::get)
+                    .thenComparing(sizes::get, Comparator.reverseOrder()));
+
+            Deque<Object[]> window = new ArrayDeque<Object[]>();
+            for (String id : order) {
+                File loose = join(BLOBS_DIR, id);
+                Entry packed = loose.isFile() ? null : find(id);
+                long stored = packed == null ? loose.length() : packed.bytes.remaining();
+                if (!fits(stored)) {
+                    continue;
+                }
+                if (sizes.get(id) > DELTA_LIMIT) {
+                    addWhole(id, loose, packed);
+                    continue;
+                }
+                byte[] contents = Blob.readContents(id);
+                byte[] whole = null;
+                if (packed != null && packed.type == DELTA) {
+                    whole = Blob.compress(contents);
+                    stored = whole.length;
+                }
+                byte[] best = null;
+                int depth = 0;
+                for (Object[] base : window) {
+                    byte[] baseContents = (byte[]) base[1];
+                    int baseDepth = (Integer) base[2];
+                    int limit = best == null ? (int) stored : best.length;
+                    if (baseDepth >= MAX_DEPTH || baseContents.length > 2 * contents.length
+                            || contents.length > 2 * baseContents.length) {
+                        continue;
+                    }
+                    byte[] delta = Delta.create(baseContents, contents, limit);
+                    if (delta == null) {
+                        continue;
+                    }
+                    byte[] bytes = concat(fromHex((String) base[0]), deflate(delta));
+                    if (bytes.length < limit) {
+                        best = bytes;
+                        depth = baseDepth + 1;
+                    }
+                }
+                if (best != null) {
+                    add(id, DELTA, best);
+                } else if (whole != null) {
+                    add(id, BLOB, whole);
+                } else {
+                    addWhole(id, loose, packed);
+                }
+                window.addFirst(new Object[] {id, contents, depth});
+                if (window.size() > WINDOW) {
+                    window.removeLast();
+                }
+            }
+        }
+
+        /** Append blob ID whole, copying its stored bytes from its LOOSE file or,
+         *  if that does not exist, from the PACKED entry. */
+        private void addWhole(String id, File loose, Entry packed) {
+            try {
+                if (packed == null) {
+                    try (InputStream in = Files.newInputStream(loose.toPath())) {
+                        add(id, BLOB, in, loose.length());
+                    }
+                } else if (packed.type == BLOB) {
+                    add(id, BLOB, packed.stream(), packed.bytes.remaining());
+                } else {
+                    add(id, BLOB, Blob.compress(resolve(id, packed)));
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /** Return the size of blob ID used to order blobs, or -1 if it is
+         *  missing: its stored size, or for a delta the size of its contents. */
+        private long size(String id) {
+            File loose = join(BLOBS_DIR, id);
+            if (loose.isFile()) {
+                return loose.length();
+            }
+            Entry packed = find(id);
+            if (packed == null) {
+                return -1;
+            } else if (packed.type == DELTA) {
+                ByteBuffer bytes = packed.bytes.duplicate();
+                bytes.position(bytes.position() + id.length() / 2);
+                try (InputStream in = new InflaterInputStream(new ByteBufferInputStream(bytes))) {
+                    return Delta.resultLength(in.readNBytes(2 * 5));
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            }
+            return packed.bytes.remaining();
+        }
+
+        /** Write the index, move the pack into place and return the IDs it
+         *  holds. The new pack replaces all existing packs: their objects that
+         *  were not added to it are first written back out as loose objects, so
+         *  nothing is lost. */
+        List<String> finish() {
+            List<Pack> old = new ArrayList<Pack>(packs());
+            try {
+                out.close();
+                try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                    raf.seek(8);
+                    raf.writeInt(written.size());
+                }
+                String name = "pack-" + Hash.of(written.keySet().toArray());
+                File idx = join(PACK_DIR, name + ".idx");
+                File idxTemp = join(PACK_DIR, name + ".idx.tmp");
+                writeIndex(idxTemp);
+                Files.move(temp.toPath(), join(PACK_DIR, name + ".pack").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(idxTemp.toPath(), idx.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                for (Pack p : old) {
+                    if (p.packFile.getName().equals(name + ".pack")) {
+                        continue;
+                    }
+                    p.loosen(written);
+                    Files.delete(p.indexFile.toPath());
+                    Files.delete(p.packFile.toPath());
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            reload();
+            return new ArrayList<String>(written.keySet());
+        }
+
+        /** Write the index of the objects written to FILE. */
+        private void writeIndex(File file) throws IOException {
+            int width = Hash.width();
+            int[] fanout = new int[256];
+            for (String id : written.keySet()) {
+                fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+            }
+            for (int b = 1; b < 256; b += 1) {
+                fanout[b] += fanout[b - 1];
+            }
+            try (DataOutputStream idx = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(file.toPath())))) {
+                idx.writeInt(INDEX_MAGIC);
+                idx.writeInt(VERSION);
+                idx.writeInt(width);
+                idx.writeInt(written.size());
+                for (int n : fanout) {
+                    idx.writeInt(n);
+                }
+                for (String id : written.keySet()) {
+                    idx.write(fromHex(id));
+                }
+                for (long[] e : written.values()) {
+                    idx.writeByte((int) e[1]);
+                }
+                for (long[] e : written.values()) {
+                    idx.writeLong(e[0]);
+                }
+            }
+        }
+    }
+
+    /** Return DATA compressed with Deflate. */
+    private static byte[] deflate(byte[] data) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(result)) {
+            out.write(data);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result.toByteArray();
+    }
+
+    /** Return the decompressed remaining bytes of DATA. */
+    private static byte[] inflate(ByteBuffer data) {
+        try (InputStream in = new InflaterInputStream(new ByteBufferInputStream(data))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the concatenation of A and B. */
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /** An InputStream reading the remaining bytes of a ByteBuffer. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+            buf.mark();
+        }
+
+        @Override
+        public void reset() {
+            buf.reset();
+        }
+    }
+}
@@ -1,31 +1,27 @@
 package gitlet;
-import java.io.File;
 import java.util.List;
-import static gitlet.Utils.*;
-import static gitlet.Repository.REMOVAL_DIR;
 
 
+/** The files staged for removal: the REMOVED entries of the Index, each
+ *  with the ID of the blob the file had in the head commit. */
 public class Removal {
 
-    public static void saveFile(String fileName, String content) {
-        File temp = join(REMOVAL_DIR, fileName);
-        writeContents(temp, content);
+    public static void saveFile(String fileName, String blobId) {
+        Index.remove(fileName, blobId);
     }
 
     public static List<String> getFile() {
-        return plainFilenamesIn(REMOVAL_DIR);
+        return Index.paths(Index.REMOVED);
     }
 
     public static void removeFile(String fileName) {
-        if (join(REMOVAL_DIR, fileName).exists()) {
-            join(REMOVAL_DIR, fileName).delete();
+        Index.Entry e = Index.get(fileName);
+        if (e != null && e.state == Index.REMOVED) {
+            Index.unstage(fileName);
         }
     }
 
     public static void clear() {
-        List<String> files = getFile();
-        for (String file : files) {
-            removeFile(file);
-        }
+        Index.clear(Index.REMOVED);
     }
 }
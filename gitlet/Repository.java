@@ -1,7 +1,18 @@
 package gitlet;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import static gitlet.Utils.*;
 
 /** Represents a gitlet repository.
@@ -21,11 +32,51 @@ public class Repository {
     public static final File GITLET_DIR = join(CWD, ".gitlet");
     public static final File COMMIT_DIR = join(GITLET_DIR, "commit");
     public static final File BRANCH_DIR = join(GITLET_DIR, "branch");
+    /** Staging directories of earlier versions, replaced by INDEX. */
     public static final File STAGE_DIR = join(GITLET_DIR, "Stage");
     public static final File REMOVAL_DIR = join(GITLET_DIR, "Removal");
+    /** The files staged for addition and removal, see Index. */
+    public static final File INDEX = join(GITLET_DIR, "index");
     public static final File BLOBS_DIR = join(GITLET_DIR, "blobs");
+    /** Directory trees of commits, see Tree. */
+    public static final File TREE_DIR = join(GITLET_DIR, "tree");
     public static final File HEAD_DIR = join(GITLET_DIR, "head");
     public static final File HEAD_BRANCH = join(HEAD_DIR, "HeadBranch");
+    /** Sorted table of all commit IDs, see CommitIndex. */
+    public static final File COMMIT_INDEX = join(GITLET_DIR, "commit-index");
+    /** Commits made since COMMIT_INDEX was last written, see CommitIndex. */
+    public static final File COMMIT_JOURNAL = join(GITLET_DIR, "commit-journal");
+    /** Parents and generations of commits, see CommitGraph. */
+    public static final File COMMIT_GRAPH = join(GITLET_DIR, "commit-graph");
+    /** Commit messages and their commits, see MessageIndex. */
+    public static final File MESSAGE_INDEX = join(GITLET_DIR, "message-index");
+    /** Commits made since MESSAGE_INDEX was last written, see MessageIndex. */
+    public static final File MESSAGE_JOURNAL = join(GITLET_DIR, "message-journal");
+    /** Settings of the repository, such as its object format, see Hash. */
+    public static final File CONFIG = join(GITLET_DIR, "config");
+    /** Held by the command that is running in this repository, see GitletSession. */
+    public static final File LOCK = join(GITLET_DIR, "lock");
+    /** Size of the buffer log output is written through. */
+    private static final int LOG_BUFFER_SIZE = 64 * 1024;
+    /** Pack files and their indexes, see Pack. */
+    public static final File PACK_DIR = join(GITLET_DIR, "pack");
+    /** How long gc keeps an unreachable object, in milliseconds. */
+    private static final long GC_GRACE = 14L * 24 * 60 * 60 * 1000;
+    /** The option of gc naming the time before which unreachable objects go. */
+    private static final String PRUNE = "--prune=";
+
+    /** Where commands print their output. */
+    private final PrintStream stdout;
+
+    /** A repository whose commands print to standard output. */
+    public Repository() {
+        this(System.out);
+    }
+
+    /** A repository whose commands print to STDOUT. */
+    public Repository(PrintStream stdout) {
+        this.stdout = stdout;
+    }
 
     /**
      * Create a new gitlet Version Control System locally on your machine, generate
@@ -33,23 +84,26 @@ public class Repository {
      *  -COMMIT_DIR
      *  -BRANCH_DIR
      *  -BLOBS_DIR
-     *  -REMOVAL_DIR
-     *  -STAGE-DIR
+     *  -TREE_DIR
      *  -HEAD_DIR
-     * under the GITLET_DIR.
+     * under the GITLET_DIR. Objects are named by hashes in object format FORMAT, Hash.SHA1
+     * or Hash.SHA256.
      * */
-    public void init() {
+    public void init(String format) {
         if (GITLET_DIR.exists()) {
             error("A Gitlet version-control system already exists in the current directory.");
         } else {
+            Hash.checkFormat(format);
             mkdir(GITLET_DIR);
+            Hash.setFormat(format);
+            Codec.recordHeaders();
             mkdir(COMMIT_DIR);
             mkdir(BRANCH_DIR);
             mkdir(BLOBS_DIR);
-            mkdir(REMOVAL_DIR);
-            mkdir(STAGE_DIR);
+            mkdir(TREE_DIR);
             mkdir(HEAD_DIR);
             Commit init = new Commit("initial commit", new Date(0), "master", null, null);
+            init.setTree(Tree.write(new HashMap<String, String>()));
             init.saveCommit();
             Branch.saveCommit("master", init.getID());
             setBranchName("master");
@@ -57,31 +111,68 @@ public class Repository {
     }
 
     /**
-     * This method will first look for the file with given filename from CWD and add the file
-     * under the STAGE_DIR if the head commit do not contain this file with the same content.
+     * This method will first look for the files with given names from CWD and add each file
+     * to the index if the head commit do not contain this file with the same content. A file
+     * whose size, mtime and inode match those in the index is not read again.
      *
-     * @param filename The name of the file that will be work in this method.
+     * A name may be a directory, such as ".", which adds every file under it that
+     * .gitletignore does not exclude (see Worktree). The files are hashed and stored in
+     * parallel; the head Commit is loaded once and the index is written once at the end.
+     *
+     * @param fileNames The names of the files and directories that will be work in this method.
      * */
-    public void add(String filename) {
-        File f = join(CWD, filename);
-        if (!f.exists()) {
-            error("File does not exist.");
+    public void add(String... fileNames) {
+        Set<String> paths = new TreeSet<String>();
+        for (String name : fileNames) {
+            addPaths(name, paths);
         }
 
         Commit head = loadHead(getBranchName());
         Map<String, String> exist = head.getBlobs();
-        Blob b = new Blob(readContentsAsString(f));
-        String blobId = b.getId();
-
-        // Check if the file is already in the current commit//
-        if (exist.containsKey(filename) && blobId.equals(exist.get(filename))) {
-            // delete it from the stage area if it exists.
-            Stage.removeFile(filename);
-            Removal.removeFile(filename);
-            return;
+        Map<String, String> ids = new ConcurrentHashMap<String, String>();
+        paths.parallelStream().forEach(name -> {
+            File f = join(CWD, name);
+            String blobId = Index.cachedId(name, f);
+            if (blobId == null) {
+                blobId = new Blob(f).getId();
+            }
+            // The hash computed here is the one the commit will record.
+            if (!blobId.equals(exist.get(name))) {
+                new Blob(f, blobId).save();
+            }
+            ids.put(name, blobId);
+        });
+
+        for (String name : paths) {
+            String blobId = ids.get(name);
+            // Check if the file is already in the current commit//
+            if (blobId.equals(exist.get(name))) {
+                // delete it from the stage area if it exists.
+                Stage.removeFile(name);
+                Removal.removeFile(name);
+                Index.track(name, blobId);
+            } else {
+                Stage.saveFile(name, blobId);
+            }
         }
+        Index.write();
+    }
 
-        Stage.saveFile(filename, readContentsAsString(f));
+    /**
+     * Add to PATHS the path of the file NAME relative to CWD, with '/' between directories,
+     * or the paths of the files under NAME if it is a directory.
+     */
+    private void addPaths(String name, Set<String> paths) {
+        File f = join(CWD, name);
+        if (!f.exists()) {
+            error("File does not exist.");
+        }
+        String path = Worktree.path(f);
+        if (!f.isDirectory()) {
+            paths.add(path);
+        } else {
+            paths.addAll(Worktree.files(path));
+        }
     }
 
     public void commit(String message) {
@@ -90,7 +181,7 @@ public class Repository {
 
     /**
      * 1. Create a new Commit.
-     * 2. Copy all the tracked files in the current head Commit to the new Commit.
+     * 2. Start from the tree of the parent Commit, so unchanged files are shared.
      * 3. Add the tracked files from the adding Stage and overwrite files
      *    into the new Commit if it is already existed.
      * 4. Remove the files that are currently tracked in the remove Stage.
@@ -114,30 +205,22 @@ public class Repository {
         assert parent != null;
         Commit node = new Commit(message, new Date(), getBranchName(), parent.getID(), id2);
 
-        // Add all the files from parent to the Commit
-        node.setBlobs(parent.getBlobs());
-
-        // Add all the files from addStage to the Commit
+        // Only the staged changes are applied to the parent's tree; every file
+        // the commit does not touch keeps the parent's entry.
+        Map<String, String> changes = new HashMap<String, String>();
         for (String name : add) {
-            File f = join(STAGE_DIR, name);
-            Blob b = new Blob(readContentsAsString(f));
-            b.save();
-            if (node.getBlobs().containsKey(name)) {
-                node.getBlobs().remove(name);
-            }
-            node.add(name, b.getId());
+            changes.put(name, Stage.getBlobId(name));
         }
-
-        // Remove all the files from the new Commit if it is tracked in the removeStage
-        for (String fileName : Removal.getFile()) {
-            node.getBlobs().remove(fileName);
+        for (String fileName : remove) {
+            changes.put(fileName, null);
         }
+        node.setTree(Tree.update(parent.getTree(), changes));
 
         // Clear all the files from the stage area
-        Stage.clear();
-        Removal.clear();
+        Index.committed();
         node.saveCommit();
         Branch.saveCommit(getBranchName(), node.getID());
+        Index.write();
     }
 
     /**
@@ -146,11 +229,13 @@ public class Repository {
      *         Commit, add this file to the remove Stage and delete this file from CWD.
      * @param filename The name of the file that will be work in this method.
      * */
-    public void rm(String filename) {
+    public void rm(String name) {
+        String filename = Worktree.path(join(CWD, name));
         List<String> add = Stage.load();
         // remove the file from the addStage
         if (add.contains(filename)) {
             Stage.removeFile(filename);
+            Index.write();
             return;
         }
 
@@ -159,13 +244,13 @@ public class Repository {
         if (curr.getBlobs().containsKey(filename)) {
             HashMap<String, String> blobs = curr.getBlobs();
             String bId = blobs.get(filename);
-            String content = Blob.getContents(bId);
-            Removal.saveFile(filename, content);
-            join(CWD, filename).delete();
+            Removal.saveFile(filename, bId);
+            Index.write();
+            Worktree.delete(filename);
             return;
         }
 
-        System.out.println("No reason to remove the file.");
+        stdout.println("No reason to remove the file.");
 
     }
 
@@ -189,8 +274,7 @@ public class Repository {
         if (blobId == null) {
             error("File does not exist in that commit.");
         }
-        byte[] blobContents = readContents(join(BLOBS_DIR, blobId));
-        writeContents(join(CWD, fileName), blobContents);
+        Blob.writeTo(blobId, join(CWD, fileName));
     }
 
     /**
@@ -225,7 +309,10 @@ public class Repository {
      * This method will take version of the files that are tracked in the Commit with given ID
      * to the CWD and overwrite the files if they exist in the CDW and remove the files from the
      * CWD if the file is tracked head Commit but not the Commit with given ID, remove it from the
-     * CWD and clear all the files in the adding stage area.
+     * CWD and clear all the files in the adding stage area. The files are written in parallel
+     * on a bounded pool (see Checkout). Only files that differ from the working copy are
+     * written: a file the index shows to hold the target version already is left alone, so
+     * switching between commits that differ in a few files writes only those files.
      *
      * @param commitID The ID of the Commit that will be work in this method.
      */
@@ -235,24 +322,31 @@ public class Repository {
 
         assert target != null;
         checkUntracked(target);
-        Set<String> fileNames = target.getBlobs().keySet();
         if (target.getID().equals(curr.getID())) {
             return;
         }
 
-        for (String fileName : fileNames) {
-            String blobId = target.getBlobs().get(fileName);
-            byte[] blobContents = readContents(join(BLOBS_DIR, blobId));
-            writeContents(join(CWD, fileName), (Object) blobContents);
+        // A file is written unless the index shows the working copy already holds the
+        // target version, which is always the case for a clean file the two commits share.
+        Map<String, String> writes = new HashMap<String, String>();
+        for (Map.Entry<String, String> e : target.getBlobs().entrySet()) {
+            String fileName = e.getKey();
+            if (!e.getValue().equals(Index.cachedId(fileName, join(CWD, fileName)))) {
+                writes.put(fileName, e.getValue());
+            }
         }
-
-        for (String fileName : curr.getBlobs().keySet()) {
-            if (!fileNames.contains(fileName)) {
-                join(CWD, fileName).delete();
+        // Files go before writes, so that a directory can replace a file of the
+        // same name and the other way round.
+        for (Map.Entry<String, String[]> e : Tree.diff(curr.getTree(),
+                target.getTree()).entrySet()) {
+            if (e.getValue()[1] == null) {
+                Worktree.delete(e.getKey());
             }
         }
+        Checkout.write(writes);
 
-        Stage.clear();
+        Index.reset(target.getBlobs(), writes.keySet());
+        Index.write();
     }
 
     /**
@@ -276,65 +370,176 @@ public class Repository {
     /**
      * Starting at the current head commit, display information about each commit backwards
      * along the commit tree until the initial commit, following the first parent commit links,
-     * ignoring any second parents found in merge commits.
+     * ignoring any second parents found in merge commits. Only the commits FILTER accepts are
+     * shown; the walk stops as soon as no older commit can be, and each commit is written out
+     * as it is read.
+     *
+     * @param filter The limits given on the command line.
      * */
-    public void log() {
-        Commit head = loadHead(getBranchName());
-        while (head.getParentID1() != null) {
-            helpLog(head);
-            head = Commit.findCommit(head.getParentID1());
+    public void log(LogFilter filter) {
+        PrintWriter out = logWriter();
+        try {
+            Commit c = loadHead(getBranchName());
+            int shown = 0;
+            while (c != null && shown < filter.limit && c.getTime() >= filter.since) {
+                if (c.getTime() <= filter.until) {
+                    helpLog(c, out);
+                    shown += 1;
+                }
+                c = c.getParentID1() == null ? null : Commit.findCommit(c.getParentID1());
+            }
+        } finally {
+            out.flush();
         }
-        helpLog(head);
     }
 
     /**
      * This is a helper method that print out the information of the given Commit.
      *
      * @param c The Commit that will be work in this method.
+     * @param out Where the information is written.
      * */
-    private void helpLog(Commit c) {
-        System.out.println("===");
-        System.out.println("commit " + c.getID());
+    private void helpLog(Commit c, PrintWriter out) {
+        out.print("===\ncommit ");
+        out.print(c.getID());
+        out.print('\n');
         if (c.getParentID1() != null && c.getParentID2() != null) {
-            String merge = String.format("Merge: %s %s", c.getParentID1().substring(0, 7),
-                    c.getParentID2().substring(0, 7));
-            System.out.println(merge);
+            out.print("Merge: ");
+            out.print(c.getParentID1().substring(0, 7));
+            out.print(' ');
+            out.print(c.getParentID2().substring(0, 7));
+            out.print('\n');
         }
-        System.out.println("Date: " + c.getDate());
-        System.out.println(c.getMessage() + "\n");
+        out.print("Date: ");
+        out.print(c.getDate());
+        out.print('\n');
+        out.print(c.getMessage());
+        out.print("\n\n");
     }
 
     /**
-     * This method will display the information of all the commit that store in the COMMIT_DIR.
+     * Return a writer that buffers the output of log and global-log, so that each commit
+     * does not cost a write to standard output.
+     */
+    private PrintWriter logWriter() {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(stdout),
+                LOG_BUFFER_SIZE), false);
+    }
+
+    /**
+     * This method will display the information of all the commit that store in the COMMIT_DIR
+     * and that FILTER accepts.
+     *
+     * @param filter The limits given on the command line.
      * */
-    public void globalLog() {
-        List<String> commits = Commit.getCommitIds();
-        for (String id : commits) {
-            helpLog(Commit.findCommit(id));
+    public void globalLog(LogFilter filter) {
+        PrintWriter out = logWriter();
+        try {
+            int shown = 0;
+            for (String id : Commit.getCommitIds()) {
+                if (shown >= filter.limit) {
+                    break;
+                }
+                Commit c = Commit.findCommit(id);
+                if (c.getTime() >= filter.since && c.getTime() <= filter.until) {
+                    helpLog(c, out);
+                    shown += 1;
+                }
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * The limits on the commits log and global-log show: at most LIMIT commits, none made
+     * before SINCE or after UNTIL, in epoch milliseconds.
+     */
+    public static class LogFilter {
+        private int limit = Integer.MAX_VALUE;
+        private long since = Long.MIN_VALUE;
+        private long until = Long.MAX_VALUE;
+
+        /**
+         * Return the filter given by the options ARGS[START..], each of "-n COUNT",
+         * "--since DATE" and "--until DATE". A DATE is yyyy-MM-dd, meaning the start of that
+         * day for --since and its end for --until, or yyyy-MM-ddTHH:mm[:ss], in local time.
+         */
+        public static LogFilter parse(String[] args, int start) {
+            LogFilter filter = new LogFilter();
+            for (int i = start; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                String value = args[i + 1];
+                try {
+                    switch (args[i]) {
+                        case "-n":
+                            filter.limit = Integer.parseInt(value);
+                            if (filter.limit < 0) {
+                                throw Utils.error("Incorrect operands.");
+                            }
+                            break;
+                        case "--since":
+                            filter.since = parseDate(value, false);
+                            break;
+                        case "--until":
+                            filter.until = parseDate(value, true);
+                            break;
+                        default:
+                            throw Utils.error("Incorrect operands.");
+                    }
+                } catch (NumberFormatException | DateTimeParseException excp) {
+                    throw Utils.error("Incorrect operands.");
+                }
+            }
+            return filter;
+        }
+
+        /** Return the local date or date-time S in epoch milliseconds; a date alone means
+         *  the last millisecond of that day if END, or else its first. */
+        static long parseDate(String s, boolean end) {
+            ZoneId zone = ZoneId.systemDefault();
+            if (s.contains("T")) {
+                return LocalDateTime.parse(s).atZone(zone).toInstant().toEpochMilli();
+            }
+            LocalDate day = LocalDate.parse(s);
+            if (end) {
+                return day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+            }
+            return day.atStartOfDay(zone).toInstant().toEpochMilli();
         }
     }
 
     /**
      * This method prints out the ids of all commits that have the given commit message,
-     * one per line.
+     * one per line. With the option --prefix it prints those whose message starts with
+     * the given text instead, and with --contains those whose message contains it.
+     * Messages are looked up in the MessageIndex, so no commit is read.
      *
+     * @param option null for an exact match, or "--prefix" or "--contains".
      * @param message Looking for the Commits that contain this message.
      * */
-    public void find(String message) {
-        boolean exist = false;
-        List<String> commits = Commit.getCommitIds();
-        for (String id : commits) {
-            Commit c = Commit.findCommit(id);
-            assert c != null;
-            if (c.getMessage().equals(message)) {
-                exist = true;
-                System.out.println(id);
-            }
+    public void find(String option, String message) {
+        List<String> ids;
+        if (option == null) {
+            ids = MessageIndex.exact(message);
+        } else if (option.equals("--prefix")) {
+            ids = MessageIndex.prefix(message);
+        } else if (option.equals("--contains")) {
+            ids = MessageIndex.contains(message);
+        } else {
+            throw Utils.error("Incorrect operands.");
         }
 
-        if (!exist) {
+        if (ids.isEmpty()) {
             error("Found no commit with that message.");
         }
+        PrintWriter out = logWriter();
+        for (String id : ids) {
+            out.println(id);
+        }
+        out.flush();
     }
 
     /**
@@ -347,28 +552,74 @@ public class Repository {
             error("Not in an initialized Gitlet directory.");
         }
 
-        System.out.println("=== Branches ===");
+        stdout.println("=== Branches ===");
         for (String name : Branch.getBranchName()) {
             if (name.equals(getBranchName())) {
-                System.out.println("*" + name);
+                stdout.println("*" + name);
             } else {
-                System.out.println(name);
+                stdout.println(name);
             }
         }
 
-        System.out.println("\n=== Staged Files ===");
+        stdout.println("\n=== Staged Files ===");
         for (String fName : Stage.load()) {
-            System.out.println(fName);
+            stdout.println(fName);
         }
 
-        System.out.println("\n=== Removed Files ===");
+        stdout.println("\n=== Removed Files ===");
         for (String fName : Removal.getFile()) {
-            System.out.println(fName);
+            stdout.println(fName);
         }
 
-        //Extra Credit.
-        System.out.println("\n=== Modifications Not Staged For Commit ===");
-        System.out.println("\n=== Untracked Files ===");
+        Commit head = loadHead(getBranchName());
+        stdout.println("\n=== Modifications Not Staged For Commit ===");
+        for (String line : getModifiedFiles(head)) {
+            stdout.println(line);
+        }
+
+        stdout.println("\n=== Untracked Files ===");
+        // Files staged for removal but present again are untracked as well.
+        Set<String> untracked = new TreeSet<String>(getUntrackedFiles());
+        for (String fName : Removal.getFile()) {
+            if (join(CWD, fName).isFile()) {
+                untracked.add(fName);
+            }
+        }
+        for (String fName : untracked) {
+            stdout.println(fName);
+        }
+        stdout.println();
+        // Keep the hashes computed above for the next command.
+        Index.write();
+    }
+
+    /**
+     * Return the status lines of the files tracked in the head Commit or staged for addition
+     * whose working copy differs from the version that would be committed, as
+     * "name (modified)" or "name (deleted)", sorted by name. Files staged for removal are
+     * left out. Only the files whose stat changed since they were last hashed are read.
+     *
+     * @param head The head Commit.
+     */
+    private List<String> getModifiedFiles(Commit head) {
+        List<String> result = new ArrayList<String>();
+        Map<String, String> tracked = head.getBlobs();
+        Set<String> names = new TreeSet<String>(tracked.keySet());
+        names.addAll(Stage.load());
+        for (String name : names) {
+            Index.Entry e = Index.get(name);
+            if (e != null && e.state == Index.REMOVED) {
+                continue;
+            }
+            String expected = e != null && e.state == Index.STAGED ? e.blobId : tracked.get(name);
+            File f = join(CWD, name);
+            if (Worktree.stat(name, f) == null) {
+                result.add(name + " (deleted)");
+            } else if (!Index.blobId(name, f).equals(expected)) {
+                result.add(name + " (modified)");
+            }
+        }
+        return result;
     }
 
     /**
@@ -458,8 +709,6 @@ public class Repository {
         assert currentCommitId != null;
         Commit currentCommit = Commit.findCommit(currentCommitId);
         assert currentCommit != null;
-        List<String> cwdFileNames = Utils.plainFilenamesIn(CWD);
-        assert cwdFileNames != null;
         List<String> untrackedFiles = getUntrackedFiles();
         if (!untrackedFiles.isEmpty()) {
             for (String untrackedFileName : untrackedFiles) {
@@ -469,7 +718,7 @@ public class Repository {
                 }
             }
         }
-        if (!getUntrackedFiles().isEmpty()) {
+        if (!untrackedFiles.isEmpty()) {
             error("There is an untracked file in the way; delete it, or add and commit it first"
                             + ".");
         }
@@ -500,149 +749,261 @@ public class Repository {
         }
     }
 
+    /**
+     * Bring the changes made on the given branch since the split point into the
+     * working directory and the stage. Only the files that differ between the
+     * split point and one of the two branches are looked at, found by comparing
+     * their trees. What to do with each file is decided by an independent task on
+     * the common ForkJoin pool; the results are then applied in one batch, in path
+     * order, so the outcome does not depend on how the tasks ran.
+     */
     private boolean processMerge(Commit splitPointCommit, Commit currentCommit,
                                         Commit mergedCommit) {
-        boolean conflict = false;
+        Set<String> changed = new TreeSet<String>(
+                Tree.diff(splitPointCommit.getTree(), currentCommit.getTree()).keySet());
+        changed.addAll(Tree.diff(splitPointCommit.getTree(), mergedCommit.getTree()).keySet());
         HashMap<String, String> splitBlobs = splitPointCommit.getBlobs();
         HashMap<String, String> currentBlobs = currentCommit.getBlobs();
         HashMap<String, String> mergedBlobs = mergedCommit.getBlobs();
 
-        for (String fileName : mergedBlobs.keySet()) {
-            // modified in the given branch since the split point
-            String mergedBlobId = mergedBlobs.get(fileName);
-            String splitBlobId = splitBlobs.get(fileName);
-            String currentBlobId = currentBlobs.get(fileName);
-            // case1: Any files that have been modified in the given branch since the split
-            // point, but not modified in the current branch since the split point should be
-            // changed to their versions in the given branch
-            if (splitBlobId != null && !mergedBlobId.equals(splitBlobId)) {
-                if (splitBlobId.equals(currentBlobId)) {
-                    checkoutFile(mergedCommit.getID(), fileName);
-                    Stage.saveFile(fileName, Blob.getContents(mergedBlobId));
-                    continue;
-                }
+        Map<String, MergeAction> actions = new ConcurrentHashMap<String, MergeAction>();
+        changed.parallelStream().forEach(fileName -> {
+            MergeAction action = mergeFile(splitBlobs.get(fileName),
+                    currentBlobs.get(fileName), mergedBlobs.get(fileName));
+            if (action != null) {
+                actions.put(fileName, action);
             }
-            // case3: keep same
+        });
 
-            // case5: Any files that were not present at the split point and are present only in
-            // the given branch should be checked out and staged.
-            if (splitBlobId == null && currentBlobId == null) {
-                checkoutFile(mergedCommit.getID(), fileName);
-                Stage.saveFile(fileName, Blob.getContents(mergedBlobId));
+        boolean conflict = false;
+        Map<String, String> writes = new TreeMap<String, String>();
+        for (String fileName : changed) {
+            MergeAction action = actions.get(fileName);
+            if (action == null) {
                 continue;
             }
-            // case7: keep same
-
-            // case8: or the contents of one are changed and the other file is deleted,
-            if (splitBlobId != null && !mergedBlobId.equals(splitBlobId) && currentBlobId == null) {
-                conflict = true;
-                processConflict(fileName, currentBlobId, mergedBlobId);
+            if (action.blobId == null) {
+                Worktree.delete(fileName);
+                Removal.saveFile(fileName, currentBlobs.get(fileName));
+            } else {
+                writes.put(fileName, action.blobId);
             }
+            conflict = conflict || action.conflict;
         }
-
-        for (String fileName : currentBlobs.keySet()) {
-            String currentBlobId = currentBlobs.get(fileName);
-            String splitBlobId = splitBlobs.get(fileName);
-            String mergedBlobId = mergedBlobs.get(fileName);
-            // case2: keep same
-            // case4: keep same
-            // case6: Any files present at the split point, unmodified in the current branch, and
-            // absent in the given branch should be removed (and untracked).
-            if (currentBlobId.equals(splitBlobId)) {
-                if (mergedBlobId == null) {
-                    Utils.join(CWD, fileName).delete();
-                    Removal.clear();
-                    continue;
-                }
-            }
-            // case8: the contents of both are changed and different from other
-            if (splitBlobId != null && mergedBlobId != null) {
-                if (!currentBlobId.equals(splitBlobId) && !mergedBlobId.equals(splitBlobId)) {
-                    if (!currentBlobId.equals(mergedBlobId)) {
-                        conflict = true;
-                        processConflict(fileName, currentBlobId, mergedBlobId);
-                    }
-                }
-            }
-            // case8: or the contents of one are changed and the other file is deleted,
-            if (splitBlobId != null && !currentBlobId.equals(splitBlobId) && mergedBlobId == null) {
-                conflict = true;
-                processConflict(fileName, currentBlobId, mergedBlobId);
-            }
-            // case8: or the file was absent at the split point and has different contents in the
-            // given and current branches.
-            if (splitBlobId == null && mergedBlobId != null) {
-                if (!currentBlobId.equals(mergedBlobId)) {
-                    conflict = true;
-                    processConflict(fileName, currentBlobId, mergedBlobId);
-                }
-            }
+        Checkout.write(writes);
+        for (Map.Entry<String, String> e : writes.entrySet()) {
+            Stage.saveFile(e.getKey(), e.getValue());
         }
         return conflict;
     }
 
-    private static void processConflict(String fileName, String headBlobId, String otherBlobId) {
-        String newContents = conflictFileContents(headBlobId, otherBlobId);
-        Blob newBlob = new Blob(newContents);
-        newBlob.save();
-        File file = join(CWD, fileName);
-        writeContents(file, newContents);
-        Stage.saveFile(fileName, newContents);
+    /** What a merge does with one file: stage the blob BLOBID, or remove the file
+     *  if BLOBID is null. */
+    private static class MergeAction {
+        final String blobId;
+        /** True if BLOBID has conflict markers. */
+        final boolean conflict;
+
+        MergeAction(String blobId, boolean conflict) {
+            this.blobId = blobId;
+            this.conflict = conflict;
+        }
     }
 
+    /**
+     * Return what the merge does with a file whose blob IDs are SPLITBLOBID at the split
+     * point, CURRENTBLOBID in the current branch and MERGEDBLOBID in the given branch,
+     * null where the file is absent; or null if the file is kept as it is. Only reads
+     * blobs and stores new ones, so it may run for several files at once.
+     */
+    private static MergeAction mergeFile(String splitBlobId, String currentBlobId,
+                                         String mergedBlobId) {
+        if (Objects.equals(currentBlobId, mergedBlobId)) {
+            // case3: modified in the same way in both branches, keep same
+            return null;
+        }
+        if (Objects.equals(splitBlobId, currentBlobId)) {
+            // case6: unmodified in the current branch and absent in the given branch,
+            // remove (and untrack); case1, case5: modified or added only in the given
+            // branch, check out and stage
+            return new MergeAction(mergedBlobId, false);
+        }
+        if (Objects.equals(splitBlobId, mergedBlobId)) {
+            // case2, case4, case7: modified only in the current branch, keep same
+            return null;
+        }
+        // case8: the contents of both are changed and different from other,
+        // or the contents of one are changed and the other file is deleted
+        return processConflict(splitBlobId, currentBlobId, mergedBlobId);
+    }
 
-    private static String conflictFileContents(String headBlobId, String otherBlobId) {
-        String headContents;
-        String otherContents;
-        if (headBlobId == null) {
-            headContents = "";
+    /**
+     * Merge the two versions of a file changed in both branches and store the result as a
+     * blob. Both versions of a text file are merged line by line against the split point
+     * version (see Diff.merge3), so only the regions changed differently on both sides are
+     * marked as conflicts. A deleted or binary file conflicts as a whole.
+     */
+    private static MergeAction processConflict(String splitBlobId, String headBlobId,
+                                               String otherBlobId) {
+        byte[] headContents = headBlobId == null ? null : Blob.readContents(headBlobId);
+        byte[] otherContents = otherBlobId == null ? null : Blob.readContents(otherBlobId);
+        byte[] newContents;
+        boolean conflict = true;
+        if (headContents == null || otherContents == null
+                || Diff.isBinary(headContents) || Diff.isBinary(otherContents)) {
+            newContents = conflictFileContents(headContents, otherContents);
         } else {
-            headContents = readContentsAsString(join(BLOBS_DIR, headBlobId));
+            byte[] splitContents = splitBlobId == null
+                    ? new byte[0] : Blob.readContents(splitBlobId);
+            Diff.Result merged = Diff.merge3(splitContents, headContents, otherContents);
+            newContents = merged.contents;
+            conflict = merged.conflict;
         }
-        if (otherBlobId == null) {
-            otherContents = "";
-        } else {
-            otherContents = readContentsAsString(join(BLOBS_DIR, otherBlobId));
+        Blob newBlob = new Blob(newContents);
+        newBlob.save();
+        return new MergeAction(newBlob.getId(), conflict);
+    }
+
+    /** Return the whole-file conflict of HEADCONTENTS and OTHERCONTENTS, either of
+     *  which is null for a deleted file. */
+    private static byte[] conflictFileContents(byte[] headContents, byte[] otherContents) {
+        return concat(Diff.START, headContents == null ? new byte[0] : headContents,
+                Diff.MIDDLE, otherContents == null ? new byte[0] : otherContents, Diff.END);
+    }
+
+    /** Return the concatenation of PARTS, each a String or a byte array. */
+    private static byte[] concat(Object... parts) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (Object part : parts) {
+            byte[] bytes = part instanceof String
+                    ? ((String) part).getBytes(StandardCharsets.UTF_8) : (byte[]) part;
+            result.write(bytes, 0, bytes.length);
         }
-        return "<<<<<<< HEAD\n" + headContents + "=======\n" + otherContents + ">>>>>>>\n";
+        return result.toByteArray();
     }
 
     /**
-     * Return the split point commit.
+     * Return the split point commit: a latest common ancestor of the two commits, found
+     * through the commit graph (see CommitGraph.mergeBase).
      */
-
     private String findSplit(String currentCommitId, String mergedCommitId) {
-        Set<String> commitSet = new HashSet<String>();
-        Queue<String> bfsQueue = new ArrayDeque<String>();
-        bfsQueue.add(currentCommitId);
-        while (!bfsQueue.isEmpty()) {
-            String commitId = bfsQueue.remove();
-            Commit commit = Commit.findCommit(commitId);
-            commitSet.add(commitId);
-            if (commit.getParentID1() != null) {
-                bfsQueue.add(commit.getParentID1());
+        return CommitGraph.mergeBase(currentCommitId, mergedCommitId);
+    }
+
+    /**
+     * Write every commit, tree and blob reachable from a branch, and every staged blob, into
+     * one new pack file, replacing any existing packs, and delete the loose copies of the
+     * packed objects. Blobs are stored as deltas against similar blobs where that saves space
+     * (see Pack.Writer.addBlobs); very large blobs stay loose.
+     */
+    public void pack() {
+        repack(mark());
+    }
+
+    /**
+     * Delete the commits, trees and blobs that neither a branch nor the index can reach, and
+     * pack the rest if that takes less space than they take now, then report how many
+     * objects were deleted, how many bytes the objects take less than before, and how long
+     * it took. Reachable objects are marked in parallel (see Collector). An unreachable
+     * object is only deleted once it is older than the grace period, two weeks unless PRUNE
+     * says otherwise; objects that lose their place in a pack keep the pack's age.
+     *
+     * @param prune null, or "--prune=now" or "--prune=DATE" to delete every unreachable
+     *              object made by then, DATE being as for log's --since.
+     */
+    public void gc(String prune) {
+        long start = System.nanoTime();
+        long cutoff = System.currentTimeMillis() - GC_GRACE;
+        if (prune != null) {
+            if (!prune.startsWith(PRUNE)) {
+                error("Incorrect operands.");
             }
-            if (commit.getParentID2() != null) {
-                bfsQueue.add(commit.getParentID2());
+            String date = prune.substring(PRUNE.length());
+            try {
+                cutoff = date.equals("now") ? System.currentTimeMillis()
+                    : LogFilter.parseDate(date, false);
+            } catch (DateTimeParseException excp) {
+                error("Incorrect operands.");
             }
         }
+        long before = storeSize();
+        Collector marked = mark();
+        Map<String, File> objects = new HashMap<String, File>();
+        for (String id : marked.commits) {
+            objects.put(id, COMMIT_DIR);
+        }
+        for (String id : marked.trees) {
+            objects.put(id, TREE_DIR);
+        }
+        for (String id : marked.blobs.keySet()) {
+            objects.put(id, BLOBS_DIR);
+        }
+        if (Pack.worthRepacking(objects)) {
+            repack(marked);
+        }
+        long[] swept = marked.sweep(cutoff);
+        if (swept[0] > 0) {
+            CommitIndex.rebuild();
+            MessageIndex.clear();
+        }
+        stdout.println(String.format("Removed %d unreachable objects and reclaimed %d bytes"
+                + " in %d ms.", swept[0], before - storeSize(),
+                (System.nanoTime() - start) / 1000000));
+    }
 
-        bfsQueue.add(mergedCommitId);
-        while (!bfsQueue.isEmpty()) {
-            String commitId = bfsQueue.remove();
-            Commit commit = Commit.findCommit(commitId);
-            if (commitSet.contains(commitId)) {
-                return commitId;
-            }
-            if (commit.getParentID1() != null) {
-                bfsQueue.add(commit.getParentID1());
-            }
-            if (commit.getParentID2() != null) {
-                bfsQueue.add(commit.getParentID2());
-            }
+    /**
+     * Return the objects reachable from a branch head or staged in the index.
+     */
+    private Collector mark() {
+        List<String> heads = new ArrayList<String>();
+        for (String branch : Branch.getBranchName()) {
+            heads.add(Branch.getCommitID(branch));
+        }
+        Map<String, String> staged = new HashMap<String, String>();
+        for (String path : Index.paths(Index.STAGED)) {
+            staged.put(Index.get(path).blobId, path);
         }
+        return Collector.mark(heads, staged);
+    }
+
+    /**
+     * Write the objects MARKED into one new pack file, as for pack.
+     */
+    private void repack(Collector marked) {
+        Set<String> commits = new TreeSet<String>(marked.commits);
+        Set<String> trees = new TreeSet<String>(marked.trees);
+        Pack.Writer writer = new Pack.Writer();
+        for (String id : commits) {
+            writer.add(id, Pack.COMMIT, Commit.findCommit(id).encode());
+        }
+        for (String id : trees) {
+            writer.add(id, Pack.TREE, Tree.readEncoded(id));
+        }
+        writer.addBlobs(new TreeMap<String, String>(marked.blobs));
 
-        return null;
+        for (String id : writer.finish()) {
+            File dir = commits.contains(id) ? COMMIT_DIR
+                : trees.contains(id) ? TREE_DIR : BLOBS_DIR;
+            join(dir, id).delete();
+        }
+        CommitIndex.rebuild();
+        CommitGraph.rebuild(commits);
+    }
+
+    /**
+     * Return the number of bytes taken by the loose objects and the packs.
+     */
+    private static long storeSize() {
+        long total = 0;
+        for (File dir : new File[] {COMMIT_DIR, TREE_DIR, BLOBS_DIR, PACK_DIR}) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    total += f.length();
+                }
+            }
+        }
+        return total;
     }
 
     /**
@@ -654,11 +1015,10 @@ public class Repository {
 
 
     /**
-     * Exit with given error message
+     * End the command with given error message, which Main prints.
      */
     private void error(String message) {
-        System.out.println(message);
-        System.exit(0);
+        throw Utils.error(message);
     }
 
     /**
@@ -678,21 +1038,21 @@ public class Repository {
         }
     }
 
+    /**
+     * Return the paths of the files in the working tree, at any depth, that are neither
+     * tracked by the head Commit nor staged, in sorted order.
+     */
     private List<String> getUntrackedFiles() {
         List<String> result = new ArrayList<String>();
-        List<String> cwd = Utils.plainFilenamesIn(CWD);
-        Commit curr = loadHead(getBranchName());
-        List<String> stage = Stage.load();
+        Map<String, String> tracked = loadHead(getBranchName()).getBlobs();
+        Set<String> stage = new HashSet<String>(Stage.load());
 
-        for (String fileName : cwd) {
-            boolean tracked = curr.getBlobs().containsKey(fileName);
-            boolean staged = stage.contains(fileName);
+        for (String fileName : Worktree.files("")) {
             // untracked files
-            if (!staged && !tracked) {
+            if (!stage.contains(fileName) && !tracked.containsKey(fileName)) {
                 result.add(fileName);
             }
         }
-        Collections.sort(result);
         return result;
     }
 
@@ -1,35 +1,35 @@
 package gitlet;
 
-import java.io.File;
 import java.util.List;
 
-import static gitlet.Utils.*;
-import static gitlet.Repository.STAGE_DIR;
-
+/** The files staged for addition: the STAGED entries of the Index. Each
+ *  entry names a blob that is already in the blob store. */
 public class Stage {
 
-    /** Save the filename and content to the stage area*/
-    public static void saveFile(String fileName, String content) {
-        File temp = join(STAGE_DIR, fileName);
-        writeContents(temp, content);
+    /** Stage the blob BLOBID as the new version of FILENAME. */
+    public static void saveFile(String fileName, String blobId) {
+        Index.stage(fileName, blobId);
+    }
+
+    /** Return the ID of the blob staged for FILENAME. */
+    public static String getBlobId(String fileName) {
+        return Index.get(fileName).blobId;
     }
 
     /** Remove the file from the stage area*/
     public static void removeFile(String fileName) {
-        if (join(STAGE_DIR, fileName).exists()) {
-            join(STAGE_DIR, fileName).delete();
+        Index.Entry e = Index.get(fileName);
+        if (e != null && e.state == Index.STAGED) {
+            Index.unstage(fileName);
         }
     }
 
     /** Return a list of filenames at the stage area*/
     public static List<String> load() {
-        return plainFilenamesIn(STAGE_DIR);
+        return Index.paths(Index.STAGED);
     }
 
     public static void clear() {
-        List<String> name = load();
-        for (String n : name) {
-            removeFile(n);
-        }
+        Index.clear(Index.STAGED);
     }
 }
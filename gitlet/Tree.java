@@ -0,0 +1,315 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.TREE_DIR;
+
+/** A directory snapshot: a content-addressed object mapping each name in one
+ *  directory to a blob, or to another tree for a subdirectory. A commit stores
+ *  only the ID of its root tree, so a commit that changes a few files writes
+ *  only the trees on the paths to them and shares every other subtree with
+ *  its parent.
+ *
+ *  A tree is stored in TREE_DIR under the hash of its encoding (see Hash): the
+ *  magic "GLT", a format version, the ID width, the entry count and, sorted by
+ *  name, each entry's kind, name and raw ID. A tree whose stored encoding no
+ *  longer hashes to its ID is reported as corrupt when read. Paths given to
+ *  the methods below use '/' between directories.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Tree {
+
+    /** Kind of an entry naming a blob. */
+    private static final int BLOB = 1;
+    /** Kind of an entry naming a subtree. */
+    private static final int TREE = 2;
+
+    /** First bytes of an encoded tree. */
+    private static final byte[] MAGIC = {'G', 'L', 'T'};
+    /** Version of the encoding. */
+    private static final int VERSION = 1;
+    /** Number of decoded trees kept in CACHE. */
+    private static final int CACHE_SIZE = 4096;
+
+    /** Trees already read by this process, by ID. */
+    private static final Map<String, Tree> CACHE =
+        new LinkedHashMap<String, Tree>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Tree> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    /** The IDs of the blobs and of the subtrees in this directory, by name. */
+    private final TreeMap<String, String> blobs;
+    private final TreeMap<String, String> trees;
+
+    private Tree(TreeMap<String, String> blobs, TreeMap<String, String> trees) {
+        this.blobs = blobs;
+        this.trees = trees;
+    }
+
+    /** Return the ID of the tree holding FILES, a map from path to blob ID,
+     *  writing every tree that is not stored yet. */
+    static String write(Map<String, String> files) {
+        return update(null, files, "");
+    }
+
+    /** Return the ID of the tree ROOT with the changes CHANGES applied, writing
+     *  the trees that change. CHANGES maps a path to its new blob ID, or to null
+     *  to remove it. ROOT may be null for an empty tree. Subtrees without
+     *  changes keep their IDs, and directories left empty disappear. A path
+     *  that would be both a file and a directory is an error, as a tree can
+     *  only hold one of them under a name. */
+    static String update(String root, Map<String, String> changes) {
+        return update(root, changes, "");
+    }
+
+    /** As for update(ROOT, CHANGES), where ROOT is the tree of the directory
+     *  at PREFIX, "" for the top tree, and its path followed by '/' otherwise;
+     *  but return null if the result is empty and not the top tree. */
+    private static String update(String root, Map<String, String> changes, String prefix) {
+        Tree t = root == null ? new Tree(new TreeMap<String, String>(),
+                new TreeMap<String, String>()) : read(root);
+        TreeMap<String, String> blobs = new TreeMap<String, String>(t.blobs);
+        TreeMap<String, String> trees = new TreeMap<String, String>(t.trees);
+        Map<String, Map<String, String>> nested = new TreeMap<String, Map<String, String>>();
+
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            String path = e.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (e.getValue() == null) {
+                    blobs.remove(path);
+                } else {
+                    blobs.put(path, e.getValue());
+                }
+            } else {
+                nested.computeIfAbsent(path.substring(0, slash),
+                    k -> new HashMap<String, String>())
+                        .put(path.substring(slash + 1), e.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> e : nested.entrySet()) {
+            String sub = update(trees.get(e.getKey()), e.getValue(), prefix + e.getKey() + "/");
+            if (sub == null) {
+                trees.remove(e.getKey());
+            } else {
+                trees.put(e.getKey(), sub);
+            }
+        }
+        for (String name : blobs.keySet()) {
+            if (trees.containsKey(name)) {
+                throw error("%s%s is both a file and a directory.", prefix, name);
+            }
+        }
+        if (blobs.isEmpty() && trees.isEmpty() && !prefix.isEmpty()) {
+            return null;
+        }
+        return new Tree(blobs, trees).save();
+    }
+
+    /** Return the map from path to blob ID of every file under tree ROOT. */
+    static HashMap<String, String> flatten(String root) {
+        HashMap<String, String> result = new HashMap<String, String>();
+        flatten(root, "", result);
+        return result;
+    }
+
+    /** Add the files under tree ID to RESULT, their paths prefixed by PREFIX. */
+    private static void flatten(String id, String prefix, Map<String, String> result) {
+        Tree t = read(id);
+        for (Map.Entry<String, String> e : t.blobs.entrySet()) {
+            result.put(prefix + e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : t.trees.entrySet()) {
+            flatten(e.getValue(), prefix + e.getKey() + "/", result);
+        }
+    }
+
+    /** Return the paths whose blob differs between trees A and B, each mapped to
+     *  its pair of blob IDs, the one in A first; an ID is null where the path is
+     *  absent. Subtrees with the same ID in both are skipped without reading. */
+    static TreeMap<String, String[]> diff(String a, String b) {
+        TreeMap<String, String[]> result = new TreeMap<String, String[]>();
+        diff(a, b, "", result);
+        return result;
+    }
+
+    /** Add the differences between trees A and B, either of which may be null,
+     *  to RESULT, their paths prefixed by PREFIX. */
+    private static void diff(String a, String b, String prefix, Map<String, String[]> result) {
+        if (a != null && a.equals(b)) {
+            return;
+        }
+        Tree ta = a == null ? null : read(a);
+        Tree tb = b == null ? null : read(b);
+        TreeSet<String> names = new TreeSet<String>();
+        for (Tree t : new Tree[] {ta, tb}) {
+            if (t != null) {
+                names.addAll(t.blobs.keySet());
+                names.addAll(t.trees.keySet());
+            }
+        }
+        for (String name : names) {
+            String blobA = ta == null ? null : ta.blobs.get(name);
+            String blobB = tb == null ? null : tb.blobs.get(name);
+            if (blobA == null ? blobB != null : !blobA.equals(blobB)) {
+                result.put(prefix + name, new String[] {blobA, blobB});
+            }
+            String treeA = ta == null ? null : ta.trees.get(name);
+            String treeB = tb == null ? null : tb.trees.get(name);
+            if (treeA != null || treeB != null) {
+                diff(treeA, treeB, prefix + name + "/", result);
+            }
+        }
+    }
+
+    /** Return the IDs of the blobs directly in this tree, by name. */
+    Map<String, String> blobIds() {
+        return Collections.unmodifiableMap(blobs);
+    }
+
+    /** Return the IDs of the subtrees directly in this tree, by name. */
+    Map<String, String> treeIds() {
+        return Collections.unmodifiableMap(trees);
+    }
+
+    /** Return the IDs of tree ROOT and all of its subtrees. */
+    static TreeSet<String> subtrees(String root) {
+        TreeSet<String> result = new TreeSet<String>();
+        addSubtrees(root, result);
+        return result;
+    }
+
+    /** Add tree ID and its subtrees to RESULT, skipping those already there. */
+    private static void addSubtrees(String id, TreeSet<String> result) {
+        if (result.add(id)) {
+            for (String sub : read(id).trees.values()) {
+                addSubtrees(sub, result);
+            }
+        }
+    }
+
+    /** Return the tree ID, read loose from TREE_DIR or from a pack. */
+    static Tree read(String id) {
+        synchronized (CACHE) {
+            Tree t = CACHE.get(id);
+            if (t != null) {
+                return t;
+            }
+        }
+        Tree t = decode(id, readEncoded(id));
+        synchronized (CACHE) {
+            CACHE.put(id, t);
+        }
+        return t;
+    }
+
+    /** Return the stored encoding of tree ID, checking that it hashes to ID. */
+    static byte[] readEncoded(String id) {
+        File f = join(TREE_DIR, id);
+        byte[] data;
+        if (f.isFile()) {
+            data = readContents(f);
+        } else {
+            Pack.Entry packed = Pack.find(id);
+            if (packed == null) {
+                throw error("Missing tree %s.", id);
+            }
+            data = packed.toArray();
+        }
+        if (!Hash.of((Object) data).equals(id)) {
+            throw error("Corrupt tree %s.", id);
+        }
+        return data;
+    }
+
+    /** Store this tree unless it is already stored, and return its ID. The
+     *  encoding goes to a temporary file that is then renamed, so a tree file
+     *  is never seen half written. */
+    private String save() {
+        byte[] data = encode();
+        String id = Hash.of((Object) data);
+        File f = join(TREE_DIR, id);
+        if (!f.isFile() && !Pack.contains(id)) {
+            if (!TREE_DIR.isDirectory()) {
+                TREE_DIR.mkdir();
+            }
+            try {
+                File temp = File.createTempFile("tree", ".tmp", TREE_DIR);
+                writeContents(temp, (Object) data);
+                Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        synchronized (CACHE) {
+            CACHE.put(id, this);
+        }
+        return id;
+    }
+
+    /** Return the encoding of this tree. */
+    private byte[] encode() {
+        TreeSet<String> names = new TreeSet<String>(blobs.keySet());
+        names.addAll(trees.keySet());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(Hash.width());
+            out.writeInt(names.size());
+            for (String name : names) {
+                boolean isTree = trees.containsKey(name);
+                out.writeByte(isTree ? TREE : BLOB);
+                writeString(out, name);
+                out.write(fromHex(isTree ? trees.get(name) : blobs.get(name)));
+            }
+        } catch (IOException excp) {
+            throw error("Internal error serializing tree.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Return the tree with ID ID whose encoding is DATA. */
+    private static Tree decode(String id, byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+                throw error("Unknown format for tree %s.", id);
+            }
+            byte[] raw = new byte[in.readUnsignedByte()];
+            int count = in.readInt();
+            TreeMap<String, String> blobs = new TreeMap<String, String>();
+            TreeMap<String, String> trees = new TreeMap<String, String>();
+            for (int i = 0; i < count; i += 1) {
+                int kind = in.readUnsignedByte();
+                String name = readString(in);
+                in.readFully(raw);
+                (kind == TREE ? trees : blobs).put(name, toHex(raw));
+            }
+            return new Tree(blobs, trees);
+        } catch (IOException excp) {
+            throw error("Corrupt tree %s.", id);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+import static gitlet.Utils.*;
+import static gitlet.Repository.CWD;
+
+/** The files of the working directory, as Gitlet sees them: every plain file
+ *  under CWD, at any depth, named by its path relative to CWD with '/'
+ *  between directories.
+ *
+ *  files walks a directory on the common ForkJoin pool. Each directory is
+ *  listed by its own task, which forks a task for every subdirectory and then
+ *  joins their results into its own in order, so a wide or deep tree is
+ *  listed by all cores at once. Subdirectories sort as if their names ended
+ *  in '/', which makes the result come out in the order of the paths as
+ *  strings, the order of the index and of status, without a final sort.
+ *
+ *  Directories named .gitlet are never entered. Nor is anything matched by a
+ *  line of IGNORE_FILE, the .gitletignore at the top of the working
+ *  directory. Each line is a glob, as for FileSystem.getPathMatcher; blank
+ *  lines and lines starting with '#' are skipped. A pattern ending in '/'
+ *  only matches directories. A pattern containing another '/' is matched
+ *  against the whole path, with any leading '/' dropped; any other pattern
+ *  against the name of each file and directory, at any depth. A matched
+ *  directory is not entered at all. Files that are already tracked stay
+ *  tracked whether or not they match.
+ *
+ *  In a daemon running a Monitor, the listing is kept between commands in
+ *  SNAPSHOT, together with the stat of each file. The first use of the
+ *  working directory by a command syncs with the monitor and looks again only
+ *  at the paths in its journal, so that status, add and the untracked file
+ *  checks of checkout and merge cost time in proportion to what changed. The
+ *  tree is walked again when the journal was begun anew or lost events, or
+ *  when .gitletignore changed. Once a command writes to the working directory
+ *  the snapshot is out of date, and the rest of the command asks the file
+ *  system as it would without a monitor.
+ *
+ *  @author ChaoYuan Lin
+ */
+class Worktree {
+
+    /** The ignore file of the working directory. */
+    static final File IGNORE_FILE = join(CWD, ".gitletignore");
+
+    /** States of SNAPSHOT for the running command: not synced with the
+     *  monitor yet, describing the working directory, or not to be used. */
+    private static final int UNSYNCED = 0;
+    private static final int CURRENT = 1;
+    private static final int STALE = 2;
+
+    /** The files of the working directory, each with its stat as Index.stat
+     *  returns it, as of the last sync with the monitor, or null. */
+    private static TreeMap<String, long[]> snapshot;
+    /** The token of the journal SNAPSHOT follows, and how far it has read. */
+    private static String token;
+    private static long offset;
+    /** The state of SNAPSHOT for the running command. */
+    private static volatile int state = UNSYNCED;
+
+    /** One pattern of IGNORE_FILE. */
+    private static class Rule {
+        /** Matches the path or the name, as the pattern requires. */
+        final PathMatcher matcher;
+        /** True if the pattern is matched against whole paths. */
+        final boolean anchored;
+        /** True if the pattern only matches directories. */
+        final boolean directories;
+
+        Rule(String pattern) {
+            directories = pattern.endsWith("/");
+            String p = directories ? pattern.substring(0, pattern.length() - 1) : pattern;
+            anchored = p.contains("/");
+            if (p.startsWith("/")) {
+                p = p.substring(1);
+            }
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + p);
+        }
+
+        /** Return true if this rule matches the file or directory at PATH,
+         *  whose last component is NAME. */
+        boolean matches(String path, String name, boolean directory) {
+            if (directories && !directory) {
+                return false;
+            }
+            return matcher.matches(Paths.get(anchored ? path : name));
+        }
+    }
+
+    /** Lists one directory and, through tasks of its own, everything below it. */
+    private static class Walk extends RecursiveTask<List<String>> {
+        /** Tasks are serializable, though these are never serialized. */
+        private static final long serialVersionUID = 1L;
+        /** The directory to list. */
+        private final File dir;
+        /** Its path followed by '/', or "" for CWD. */
+        private final String prefix;
+        /** The rules of IGNORE_FILE. */
+        private final List<Rule> rules;
+
+        Walk(File dir, String prefix, List<Rule> rules) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.rules = rules;
+        }
+
+        @Override
+        protected List<String> compute() {
+            File[] entries = dir.listFiles();
+            List<String> result = new ArrayList<String>();
+            if (entries == null) {
+                return result;
+            }
+            // Files map to null, subdirectories to the task listing them.
+            TreeMap<String, Walk> sorted = new TreeMap<String, Walk>();
+            for (File e : entries) {
+                String name = e.getName();
+                String path = prefix + name;
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(e.toPath(), BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException excp) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    if (!name.equals(".gitlet") && !ignored(path, name, true, rules)) {
+                        Walk sub = new Walk(e, path + "/", rules);
+                        sub.fork();
+                        sorted.put(name + "/", sub);
+                    }
+                } else if ((attrs.isRegularFile() || attrs.isSymbolicLink() && e.isFile())
+                        && !ignored(path, name, false, rules)) {
+                    sorted.put(name, null);
+                }
+            }
+            for (Map.Entry<String, Walk> e : sorted.entrySet()) {
+                if (e.getValue() == null) {
+                    result.add(prefix + e.getKey());
+                } else {
+                    result.addAll(e.getValue().join());
+                }
+            }
+            return result;
+        }
+    }
+
+    /** Return the paths of the files under the directory at DIR, a path like
+     *  those returned ("" for CWD), in sorted order, leaving out what
+     *  IGNORE_FILE matches. */
+    static List<String> files(String dir) {
+        if (sync()) {
+            return new ArrayList<String>(dir.isEmpty() ? snapshot.keySet()
+                    : snapshot.subMap(dir + "/", dir + "0").keySet());
+        }
+        List<Rule> rules = rules();
+        File f = dir.isEmpty() ? CWD : join(CWD, dir);
+        String name = f.getName();
+        if (!f.isDirectory() || !dir.isEmpty()
+                && (name.equals(".gitlet") || ignored(dir, name, true, rules))) {
+            return new ArrayList<String>();
+        }
+        return new Walk(f, dir.isEmpty() ? "" : dir + "/", rules).invoke();
+    }
+
+    /** Return the path of F relative to CWD, with '/' between directories. */
+    static String path(File f) {
+        return CWD.toPath().relativize(f.toPath().normalize()).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    /** Return the stat of F, the file at PATH, as Index.stat does, from
+     *  SNAPSHOT if it is current and lists PATH. */
+    static long[] stat(String path, File f) {
+        if (sync()) {
+            long[] stat = snapshot.get(path);
+            if (stat != null) {
+                return stat;
+            }
+        }
+        return Index.stat(f);
+    }
+
+    /** Note that the running command is about to change the working
+     *  directory, so that SNAPSHOT is no longer used. */
+    static void changed() {
+        state = STALE;
+    }
+
+    /** Sync SNAPSHOT with the monitor again before it is next used, as at
+     *  the start of each command. */
+    static void reload() {
+        state = UNSYNCED;
+    }
+
+    /** Delete the file at PATH, then each directory above it, below CWD, that
+     *  is left empty. */
+    static void delete(String path) {
+        changed();
+        File f = join(CWD, path);
+        if (!f.delete()) {
+            return;
+        }
+        for (File d = f.getParentFile(); d != null && !d.equals(CWD); d = d.getParentFile()) {
+            if (!d.delete()) {
+                break;
+            }
+        }
+    }
+
+    /** Return true if SNAPSHOT may be used by the running command, bringing
+     *  it up to date first if this is its first use. */
+    private static synchronized boolean sync() {
+        if (state == UNSYNCED) {
+            state = Monitor.sync() && refresh() ? CURRENT : STALE;
+        }
+        return state == CURRENT;
+    }
+
+    /** Apply the paths added to the monitor's journal since SNAPSHOT was last
+     *  brought up to date, or build it afresh if the journal no longer
+     *  follows on from it. Return false if the journal cannot be read. */
+    private static boolean refresh() {
+        String header;
+        byte[] data;
+        try (RandomAccessFile journal = new RandomAccessFile(Monitor.JOURNAL, "r")) {
+            header = journal.readLine();
+            boolean follows = snapshot != null && header != null && header.equals(token);
+            long start = follows ? offset : journal.getFilePointer();
+            data = new byte[(int) (journal.length() - start)];
+            journal.seek(start);
+            journal.readFully(data);
+            int end = data.length;
+            while (end > 0 && data[end - 1] != '\n') {
+                end -= 1;
+            }
+            offset = start + end;
+            if (!follows) {
+                token = header;
+                snapshot = scan("", rules());
+                return true;
+            }
+            data = Arrays.copyOf(data, end);
+        } catch (IOException excp) {
+            snapshot = null;
+            return false;
+        }
+        TreeSet<String> dirty = new TreeSet<String>();
+        for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+            if (line.equals(Monitor.OVERFLOW) || line.equals(IGNORE_FILE.getName())) {
+                snapshot = scan("", rules());
+                return true;
+            }
+            if (!line.isEmpty()) {
+                dirty.add(line);
+            }
+        }
+        List<Rule> rules = dirty.isEmpty() ? null : rules();
+        for (String path : dirty) {
+            snapshot.subMap(path + "/", path + "0").clear();
+            snapshot.remove(path);
+            File f = join(CWD, path);
+            if (excluded(path, f.isDirectory(), rules)) {
+                continue;
+            }
+            if (f.isDirectory()) {
+                snapshot.putAll(scan(path, rules));
+            } else {
+                long[] stat = Index.stat(f);
+                if (stat != null) {
+                    snapshot.put(path, stat);
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Return the files under the directory at DIR, as for files, each
+     *  mapped to its stat, the files being stat'ed in parallel. */
+    private static TreeMap<String, long[]> scan(String dir, List<Rule> rules) {
+        File f = dir.isEmpty() ? CWD : join(CWD, dir);
+        List<String> paths = new Walk(f, dir.isEmpty() ? "" : dir + "/", rules).invoke();
+        long[][] stats = new long[paths.size()][];
+        IntStream.range(0, stats.length).parallel()
+            .forEach(i -> stats[i] = Index.stat(join(CWD, paths.get(i))));
+        TreeMap<String, long[]> result = new TreeMap<String, long[]>();
+        for (int i = 0; i < stats.length; i += 1) {
+            if (stats[i] != null) {
+                result.put(paths.get(i), stats[i]);
+            }
+        }
+        return result;
+    }
+
+    /** Return true if the file or directory at PATH, or a directory above
+     *  it, is named .gitlet or matched by one of RULES. */
+    private static boolean excluded(String path, boolean directory, List<Rule> rules) {
+        String[] names = path.split("/");
+        int end = 0;
+        for (int i = 0; i < names.length; i += 1) {
+            end += names[i].length();
+            boolean isDir = directory || i < names.length - 1;
+            if (isDir && names[i].equals(".gitlet")
+                    || ignored(path.substring(0, end), names[i], isDir, rules)) {
+                return true;
+            }
+            end += 1;
+        }
+        return false;
+    }
+
+    /** Return true if one of RULES matches PATH, whose last component is NAME. */
+    private static boolean ignored(String path, String name, boolean directory,
+                                   List<Rule> rules) {
+        for (Rule r : rules) {
+            if (r.matches(path, name, directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the rules of IGNORE_FILE, none if there is no such file. */
+    private static List<Rule> rules() {
+        List<Rule> result = new ArrayList<Rule>();
+        if (!IGNORE_FILE.isFile()) {
+            return result;
+        }
+        for (String line : readContentsAsString(IGNORE_FILE).split("\n")) {
+            String pattern = line.strip();
+            if (!pattern.isEmpty() && !pattern.startsWith("#")) {
+                result.add(new Rule(pattern));
+            }
+        }
+        return result;
+    }
+}